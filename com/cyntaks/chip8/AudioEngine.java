@@ -0,0 +1,276 @@
+package com.cyntaks.chip8;
+
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * Plays the CHIP-8 beep. One daemon thread, started the first time the
+ * tone sounds, owns a single output line that it keeps until close(). While
+ * the tone is on the thread feeds the line small chunks from a
+ * ToneGenerator; when it goes off (or sound is disabled) the thread writes
+ * the ramp down to silence, then waits and costs nothing while the line
+ * runs dry. The line only ever holds a few chunks, so switching the tone
+ * takes effect within about ten milliseconds.
+ * 
+ * How long each beep takes from being switched on to having its first
+ * samples written is kept in a LatencyHistogram, along with counts of
+ * underruns (the line running dry between writes while a beep is playing)
+ * and of lines opened and closed. They are written by the audio thread and
+ * safe to read or clear from any other.
+ */
+public class AudioEngine implements Runnable
+{
+  private static final int CHUNK_FRAMES = 128; //about 3 ms
+  private static final int LINE_CHUNKS = 3; //how many chunks the line may hold
+  
+  //beep latency histogram bucket upper limits, in microseconds
+  private static final long[] BUCKET_LIMITS = {1000, 2000, 5000, 10000, 20000, 50000};
+
+  private AudioFormat format;
+  private volatile boolean tone;
+  private volatile boolean enabled;
+  private volatile boolean running;
+  private boolean unavailable; //no line could be opened, so never try again
+  private Object toneLock; //guards waiting for the tone to come on, and starting the thread
+  private Thread thread; //null until the tone first comes on
+
+  private byte[] chunk;
+  private ToneGenerator generator;
+  
+  private AtomicLong toneRequested; //when the tone was last switched on, or 0 once it has been written
+  private LatencyHistogram histogram;
+  private AtomicLong underruns;
+  private volatile long linesOpened; //these three are only written by the audio thread
+  private volatile long linesClosed;
+  private volatile long openFailures;
+
+  public AudioEngine()
+  {
+    format = new AudioFormat(ToneGenerator.SAMPLE_RATE, 16, 1, true, false);
+    generator = new ToneGenerator();
+    chunk = new byte[CHUNK_FRAMES*format.getFrameSize()];
+    toneRequested = new AtomicLong();
+    histogram = new LatencyHistogram(BUCKET_LIMITS);
+    underruns = new AtomicLong();
+    toneLock = new Object();
+    enabled = true;
+    running = true;
+  }
+
+  public void run()
+  {
+    SourceDataLine line = null;
+    while(waitForTone())
+    {
+      if(line == null)
+      {
+        line = openLine();
+        if(line == null)
+          continue;
+        line.start();
+      }
+      
+      //feed the line for as long as the tone stays on
+      boolean started = false;
+      while(running && tone && enabled)
+      {
+        long requested = toneRequested.get();
+        generator.fill(chunk, 0, CHUNK_FRAMES, true);
+        
+        if(started && line.available() >= line.getBufferSize())
+          underruns.incrementAndGet();
+        line.write(chunk, 0, chunk.length); //blocks while the line is full, which paces the loop
+        started = true;
+        
+        if(requested != 0 && toneRequested.compareAndSet(requested, 0))
+          histogram.record(System.nanoTime() - requested);
+      }
+      
+      //so the next beep starts from silence too
+      while(!generator.isSilent())
+      {
+        generator.fill(chunk, 0, CHUNK_FRAMES, false);
+        line.write(chunk, 0, chunk.length);
+      }
+    }
+    
+    if(line != null)
+    {
+      line.stop();
+      line.close();
+      linesClosed++;
+    }
+  }
+  
+  /**
+   * Waits until there is a tone to play.
+   * @return false once the engine has been closed
+   */
+  private boolean waitForTone()
+  {
+    synchronized(toneLock)
+    {
+      while(running && (!tone || !enabled || unavailable))
+      {
+        try 
+        {
+          toneLock.wait();
+        } catch (InterruptedException ex) 
+        {
+          ex.printStackTrace();
+        }
+      }
+      return running;
+    }
+  }
+  
+  private SourceDataLine openLine()
+  {
+    try
+    {
+      DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
+      SourceDataLine line = (SourceDataLine)AudioSystem.getLine(info);
+      line.open(format, chunk.length*LINE_CHUNKS);
+      linesOpened++;
+      return line;
+    } catch (LineUnavailableException ex)
+    {
+      ex.printStackTrace();
+    } catch (IllegalArgumentException ex) //no line for this format
+    {
+      ex.printStackTrace();
+    }
+    openFailures++;
+    unavailable = true;
+    return null;
+  }
+  
+  /**
+   * Switches the beep on or off. Called from the emulation thread whenever
+   * the sound timer starts or runs out.
+   */
+  public void setTone(boolean tone)
+  {
+    if(tone == this.tone)
+      return;
+    if(tone && enabled)
+      toneRequested.set(System.nanoTime());
+    synchronized(toneLock)
+    {
+      this.tone = tone;
+      startThread();
+      toneLock.notifyAll();
+    }
+  }
+
+  public boolean isTone()
+  {
+    return tone;
+  }
+
+  public boolean isEnabled()
+  {
+    return enabled;
+  }
+
+  public void setEnabled(boolean enabled)
+  {
+    synchronized(toneLock)
+    {
+      this.enabled = enabled;
+      startThread();
+      toneLock.notifyAll();
+    }
+  }
+  
+  /**
+   * Starts the audio thread the first time there is a tone to play, so
+   * emulators that never beep don't have one. Called holding toneLock.
+   */
+  private void startThread()
+  {
+    if(tone && enabled && running && thread == null)
+    {
+      thread = new Thread(this, "CHIP-8 audio");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /**
+   * Stops the audio thread, if it was ever started, and waits briefly for
+   * it to close the line.
+   */
+  public void close()
+  {
+    Thread thread;
+    synchronized(toneLock)
+    {
+      running = false;
+      toneLock.notifyAll();
+      thread = this.thread;
+    }
+    if(thread == null)
+      return;
+    try 
+    {
+      thread.join(1000);
+    } catch (InterruptedException ex) 
+    {
+      ex.printStackTrace();
+    }
+  }
+
+  public AudioFormat getFormat()
+  {
+    return format;
+  }
+  
+  /**
+   * Clears the latency histogram and the underrun count. The line counts
+   * cover the whole life of the engine and are kept.
+   */
+  public void clearStatistics()
+  {
+    histogram.clear();
+    underruns.set(0);
+  }
+  
+  /**
+   * Returns how long each beep took to start playing.
+   */
+  public LatencyHistogram getHistogram()
+  {
+    return histogram;
+  }
+
+  public long getUnderruns()
+  {
+    return underruns.get();
+  }
+
+  public long getLinesOpened()
+  {
+    return linesOpened;
+  }
+
+  public long getLinesClosed()
+  {
+    return linesClosed;
+  }
+
+  public long getOpenFailures()
+  {
+    return openFailures;
+  }
+  
+  public String getReport()
+  {
+    return histogram.getReport("Beep latency", "beeps", underruns.get() + " underruns, " + linesOpened +
+                               " lines opened, " + linesClosed + " closed, " + openFailures + " failed to open");
+  }
+}
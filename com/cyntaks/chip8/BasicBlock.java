@@ -0,0 +1,111 @@
+package com.cyntaks.chip8;
+
+/**
+ * A straight-line run of decoded instructions starting at a fixed address.
+ * Only the last instruction of a block may move the program counter
+ * anywhere other than the next instruction.
+ */
+public class BasicBlock 
+{
+  private int start;
+  private int end;
+  private Instruction[] instructions;
+  private CompiledBlock compiled;
+  private int entries; //times run before being compiled
+  
+  public BasicBlock(int start, Instruction[] instructions)
+  {
+    this.start = start;
+    this.instructions = instructions;
+    
+    end = start;
+    for (int i = 0; i < instructions.length; i++) 
+    {
+      end += instructions[i].getLength();
+    }
+  }
+
+  public int getStart()
+  {
+    return start;
+  }
+
+  /**
+   * Returns the address just past the block's last instruction.
+   */
+  public int getEnd()
+  {
+    return end;
+  }
+
+  public Instruction[] getInstructions()
+  {
+    return instructions;
+  }
+  
+  public int getLength()
+  {
+    return instructions.length;
+  }
+
+  /**
+   * Returns the addresses the block can hand over to, as far as its code
+   * alone tells: jump and call targets, both sides of a skip, or just the
+   * next address. Returns, indirect jumps and invalid instructions have
+   * none, since where they go depends on runtime values.
+   */
+  public int[] getSuccessors()
+  {
+    Instruction last = instructions[instructions.length-1];
+    switch(last.getOperation())
+    {
+      case Instruction.JMP:
+        return new int[] {last.getNNN()};
+      case Instruction.JSR:
+        return new int[] {last.getNNN(), end};
+      case Instruction.SKEQ:
+      case Instruction.SKNE:
+      case Instruction.SKEQ_REG:
+      case Instruction.SKNE_REG:
+      case Instruction.SKPR:
+      case Instruction.SKUP:
+        return new int[] {end, end+2};
+      case Instruction.SKEQ_JMP:
+      case Instruction.SKNE_JMP:
+        return new int[] {last.getPart(1).getNNN(), end};
+      case Instruction.TIMER_POLL:
+        return new int[] {last.getPart(2).getNNN(), end};
+      case Instruction.KEY:
+        return new int[] {end-2, end};
+      case Instruction.RTS:
+      case Instruction.JMI:
+      case Instruction.EXIT:
+      case Instruction.INVALID:
+        return new int[0];
+      default: //cut short by the length limit
+        return new int[] {end};
+    }
+  }
+
+  /**
+   * Returns the block's generated class, or null while it is interpreted.
+   */
+  public CompiledBlock getCompiled()
+  {
+    return compiled;
+  }
+
+  public void setCompiled(CompiledBlock compiled)
+  {
+    this.compiled = compiled;
+  }
+
+  /**
+   * Counts one more run of the block.
+   * @return how many times it has been run
+   */
+  public int countEntry()
+  {
+    return ++entries;
+  }
+}
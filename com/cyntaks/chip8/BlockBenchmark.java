@@ -0,0 +1,92 @@
+package com.cyntaks.chip8;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Measures how many CHIP-8 instructions per second the interpreter, the
+ * block engine compiling blocks as they get hot, and a program compiled up
+ * front into one class get through in turbo mode, on two looping programs:
+ * one of pure register arithmetic, and one that also reads the delay timer,
+ * tests registers and draws a sprite every pass, like a game's main loop.
+ * Needs no display:
+ *
+ * <pre>
+ * java com.cyntaks.chip8.BlockBenchmark [frames per round]
+ * </pre>
+ */
+public class BlockBenchmark
+{
+  private static final int ROUNDS = 5;
+  private static final int INSTRUCTIONS_PER_FRAME = 100000;
+
+  public static void main(String[] args)
+  {
+    int frames = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+
+    int[] arithmetic = new int[40];
+    for (int i = 0; i < arithmetic.length-1; i++)
+    {
+      int x = i%15;
+      if(i%3 == 0)
+        arithmetic[i] = 0x7001 | x << 8; //add 1
+      else if(i%3 == 1)
+        arithmetic[i] = 0x8014 | x << 8 | (i+1)%15 << 4; //add with carry
+      else
+        arithmetic[i] = 0x8003 | x << 8 | (i+2)%15 << 4; //xor
+    }
+    arithmetic[arithmetic.length-1] = 0x1200;
+
+    int[] game = {
+      0x6A05, 0x6B07, //sprite position
+      0x7001, 0x8104, 0x8212, 0x8316, 0x7401, 0x8543, 0x86E0, 0x8715, //update
+      0xF807, //read the delay timer
+      0x3800, 0x7901, //count while it runs
+      0x4A40, 0x6A00, //wrap the x position
+      0x7A01, 0xA000, 0xDAB4, //move and draw a font sprite
+      0x6C04, 0x8C24, 0x8C36, 0x9C00, 0x7D01,
+      0x1204
+    };
+
+    for (int round = 1; round <= ROUNDS; round++)
+    {
+      System.out.println("round " + round + ": arithmetic " + run(arithmetic, false, false, frames) + " interpreted, " +
+                         run(arithmetic, true, false, frames) + " compiled, " +
+                         run(arithmetic, true, true, frames) + " precompiled; game loop " +
+                         run(game, false, false, frames) + " interpreted, " + run(game, true, false, frames) +
+                         " compiled, " + run(game, true, true, frames) + " precompiled");
+    }
+  }
+
+  /**
+   * Runs the program in turbo mode for the given number of frames.
+   * @return the speed, in millions of instructions per second
+   */
+  private static String run(int[] program, boolean useBlocks, boolean precompile, int frames)
+  {
+    Memory memory = new Memory(4096);
+    CPU cpu = new CPU();
+    CPUCore core = new CPUCore(cpu, memory, new Screen(), null);
+    ByteBuffer rom = ByteBuffer.allocate(program.length*2);
+    for (int i = 0; i < program.length; i++)
+    {
+      rom.putShort((short)program[i]);
+    }
+    rom.flip();
+    memory.load(rom, Memory.PROGRAM_START);
+
+    core.setUseBlocks(useBlocks);
+    if(precompile)
+      core.compileProgram();
+    core.setTurbo(true);
+    core.setInstructionsPerFrame(INSTRUCTIONS_PER_FRAME);
+    core.setFrameLimit(frames);
+    long start = System.nanoTime();
+    core.beginExecution();
+    core.waitForEnd();
+    long time = System.nanoTime() - start;
+    core.close();
+
+    double instructions = (double)frames*INSTRUCTIONS_PER_FRAME;
+    return Math.round(instructions*10000/time)/10.0 + "M/s";
+  }
+}
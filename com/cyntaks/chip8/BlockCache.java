@@ -0,0 +1,173 @@
+package com.cyntaks.chip8;
+
+/**
+ * Builds basic blocks out of memory and caches them by entry address.
+ * Blocks are either built on demand the first time their address is run,
+ * or all at once by precompile(), which follows the program's control flow
+ * statically and leaves everything it can't reach to the interpreter. A
+ * block that keeps being run is handed to the BlockCompiler, after which
+ * it runs as a generated class of its own. Precompiled blocks all share one
+ * generated class for the whole program.
+ */
+public class BlockCache 
+{
+  public static final int MAX_BLOCK_LENGTH = 64;
+  public static final int COMPILE_THRESHOLD = 16; //runs of a block before it is compiled
+  private static final int MAX_BLOCK_SIZE = MAX_BLOCK_LENGTH*Memory.MAX_INSTRUCTION_LENGTH; //bytes
+  
+  private Memory memory;
+  private BlockCompiler compiler;
+  private BasicBlock[] blocks;
+  private int codeVersion;
+  private Instruction[] buffer;
+  private boolean precompiled;
+  
+  public BlockCache(Memory memory, BlockCompiler compiler)
+  {
+    this.memory = memory;
+    this.compiler = compiler;
+    blocks = new BasicBlock[memory.getSize()];
+    buffer = new Instruction[MAX_BLOCK_LENGTH];
+    clear();
+  }
+  
+  /**
+   * Returns the block starting at the given address, or null if the program
+   * was precompiled and the address wasn't found by the static pass (or its
+   * block has since been overwritten).
+   */
+  public BasicBlock get(int address)
+  {
+    if(codeVersion != memory.getCodeVersion())
+      revalidate();
+    
+    BasicBlock block = blocks[address];
+    if(block == null && !precompiled)
+    {
+      block = build(address);
+      blocks[address] = block;
+    }
+    if(block != null && block.getCompiled() == null && block.countEntry() == COMPILE_THRESHOLD) //precompiled ones already are
+      block.setCompiled(compiler.compile(block));
+    return block;
+  }
+  
+  /**
+   * Discovers every instruction reachable from the entry address by
+   * following jumps, calls, returns to call sites and both sides of skips,
+   * builds a block for each entry point found and compiles them all into
+   * one CompiledProgram, falling back to a class per block if that fails.
+   * Indirect jumps (jmi) and returns end a path, since their targets depend
+   * on runtime values.
+   */
+  public void precompile(int entry)
+  {
+    clear();
+    precompiled = true;
+    
+    boolean[] queued = new boolean[blocks.length];
+    int[] pending = new int[blocks.length];
+    int numPending = 0;
+    pending[numPending++] = entry;
+    queued[entry] = true;
+    int count = 0;
+    
+    while(numPending > 0)
+    {
+      int address = pending[--numPending];
+      BasicBlock block = build(address);
+      blocks[address] = block;
+      count++;
+      
+      int[] targets = block.getSuccessors();
+      for (int i = 0; i < targets.length; i++) 
+      {
+        int target = targets[i];
+        if(target+1 < blocks.length && !queued[target])
+        {
+          queued[target] = true;
+          pending[numPending++] = target;
+        }
+      }
+    }
+    
+    BasicBlock[] found = new BasicBlock[count];
+    count = 0;
+    for (int i = 0; i < blocks.length; i++) 
+    {
+      if(blocks[i] != null)
+        found[count++] = blocks[i];
+    }
+    CompiledBlock program = compiler.compileProgram(found);
+    for (int i = 0; i < found.length; i++) 
+    {
+      found[i].setCompiled(program != null ? program : compiler.compile(found[i]));
+    }
+  }
+  
+  /**
+   * Drops every block and goes back to building blocks on demand.
+   */
+  public void clear()
+  {
+    for (int i = 0; i < blocks.length; i++) 
+    {
+      blocks[i] = null;
+    }
+    precompiled = false;
+    codeVersion = memory.getCodeVersion();
+    memory.clearDirtyCode();
+  }
+  
+  public boolean isPrecompiled()
+  {
+    return precompiled;
+  }
+  
+  /**
+   * Drops the blocks covering any of the code memory has overwritten since
+   * the last call. Only blocks starting up to one block's size before the
+   * overwritten range can reach into it, so only those are looked at.
+   */
+  private void revalidate()
+  {
+    int start = memory.getDirtyCodeStart();
+    int end = memory.getDirtyCodeEnd();
+    for (int i = Math.max(0, start-MAX_BLOCK_SIZE+1); i < end; i++) 
+    {
+      if(blocks[i] != null && blocks[i].getEnd() > start)
+      {
+        if(blocks[i].getCompiled() != null)
+          blocks[i].getCompiled().drop(i);
+        blocks[i] = null;
+      }
+    }
+    memory.clearDirtyCode();
+    codeVersion = memory.getCodeVersion();
+  }
+  
+  /**
+   * Returns the block starting at the given address, or null if not even one
+   * instruction fits before the end of memory.
+   */
+  private BasicBlock build(int start)
+  {
+    int length = 0;
+    int address = start;
+    
+    while(length < MAX_BLOCK_LENGTH && address+1 < memory.getSize())
+    {
+      Instruction instruction = memory.fetch(address);
+      buffer[length++] = instruction;
+      address += instruction.getLength();
+      if(instruction.endsBlock())
+        break;
+    }
+    if(length == 0)
+      return null;
+    
+    Instruction[] instructions = new Instruction[length];
+    System.arraycopy(buffer, 0, instructions, 0, length);
+    return new BasicBlock(start, instructions);
+  }
+}
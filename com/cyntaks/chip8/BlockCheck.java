@@ -0,0 +1,186 @@
+package com.cyntaks.chip8;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Checks the block engine against the interpreter on random programs. Each
+ * program mixes register arithmetic, skips, jumps, timers, key tests,
+ * sprites, scrolls and stores that rewrite its own code. It is run through
+ * blocks built and compiled as they get hot, and through blocks compiled up
+ * front by compileProgram(); blocks only stop between themselves, so the
+ * interpreter then runs it for exactly as many instructions as each did.
+ * Every pair of runs has to end in the same MachineState, byte for byte, or
+ * the program is reported. Needs no display:
+ *
+ * <pre>
+ * java com.cyntaks.chip8.BlockCheck [programs] [instructions per run]
+ * </pre>
+ */
+public class BlockCheck
+{
+  private static final int PROGRAM_LENGTH = 300; //instructions
+
+  public static void main(String[] args)
+  {
+    int programs = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+    long instructions = args.length > 1 ? Long.parseLong(args[1]) : 20000;
+
+    int mismatches = 0;
+    int crashes = 0;
+    for (int seed = 1; seed <= programs; seed++)
+    {
+      int[] program = createProgram(seed);
+      Run hot = new Run(program, true, false, instructions);
+      String problem = hot.compareTo(new Run(program, false, false, hot.getLength(instructions)), "compiled when hot");
+      if(problem == null)
+      {
+        Run precompiled = new Run(program, true, true, instructions);
+        problem = precompiled.compareTo(new Run(program, false, false, precompiled.getLength(instructions)),
+                                        "compiled up front");
+      }
+      
+      if(problem != null)
+      {
+        mismatches++;
+        System.out.println("program " + seed + ": " + problem);
+      }
+      else if(hot.crash != null)
+        crashes++;
+    }
+    System.out.println(mismatches + " of " + programs + " programs differed, " + crashes +
+                       " crashed the same way in every engine");
+    System.exit(mismatches == 0 ? 0 : 1);
+  }
+
+  /**
+   * Returns a random program for the given seed. Jumps, and half the values
+   * loaded into I, point into the program itself, so Fx33 and Fx55 rewrite
+   * its code and the sprites drawn come from it.
+   */
+  private static int[] createProgram(long seed)
+  {
+    Random random = new Random(seed);
+    int[] program = new int[PROGRAM_LENGTH];
+    for (int i = 0; i < program.length-1; i++)
+    {
+      int x = random.nextInt(16) << 8;
+      int y = random.nextInt(16) << 4;
+      int nn = random.nextInt(256);
+      int target = Memory.PROGRAM_START + 2*random.nextInt(program.length);
+      int address = random.nextBoolean() ? target : random.nextInt(0xE00);
+
+      switch(random.nextInt(30))
+      {
+        case 0: program[i] = 0x1000 | target; break;
+        case 1: program[i] = 0x3000 | x | nn; break;
+        case 2: program[i] = 0x4000 | x | nn; break;
+        case 3: program[i] = 0x5000 | x | y; break;
+        case 4: case 5: case 6: program[i] = 0x6000 | x | nn; break;
+        case 7: case 8: program[i] = 0x7000 | x | nn; break;
+        case 9: case 10: case 11: case 12:
+          int[] arithmetic = {0, 1, 2, 3, 4, 5, 6, 7, 0xE};
+          program[i] = 0x8000 | x | y | arithmetic[random.nextInt(arithmetic.length)];
+        break;
+        case 13: program[i] = 0x9000 | x | y; break;
+        case 14: program[i] = 0xA000 | address; break;
+        case 15: program[i] = 0xC000 | x | nn; break;
+        case 16: program[i] = 0xD000 | x | y | random.nextInt(16); break;
+        case 17: case 18: //a key test, on a key number
+          if(i+1 < program.length-1)
+            program[i++] = 0x6000 | x | random.nextInt(16);
+          program[i] = (random.nextBoolean() ? 0xE09E : 0xE0A1) | x;
+        break;
+        case 19: program[i] = 0xF007 | x; break;
+        case 20: program[i] = 0xF015 | x; break;
+        case 21: program[i] = 0xF018 | x; break;
+        case 22: case 23: case 24: case 25: //I and then a use of it
+          if(i+1 < program.length-1)
+            program[i++] = 0xA000 | address;
+          int[] uses = {0xF01E, 0xF033, 0xF055, 0xF065};
+          program[i] = uses[random.nextInt(uses.length)] | x;
+        break;
+        case 26: program[i] = 0xF029 | x; break;
+        case 27: program[i] = 0x00E0; break;
+        case 28: program[i] = random.nextInt(4) == 0 ? 0x00FB + random.nextInt(2) : 0x00C0 | random.nextInt(16); break;
+        default: program[i] = 0xA000 | target; break;
+      }
+    }
+    program[program.length-1] = 0x1000 | Memory.PROGRAM_START;
+    return program;
+  }
+
+  /**
+   * One program run on a fresh machine, and the state it ended in. A crash
+   * stops the run early.
+   */
+  private static class Run
+  {
+    private long executed;
+    private RuntimeException crash;
+    private ByteBuffer state;
+
+    public Run(int[] program, boolean useBlocks, boolean precompile, long instructions)
+    {
+      Memory memory = new Memory(4096);
+      CPU cpu = new CPU();
+      Screen screen = new Screen();
+      CPUCore core = new CPUCore(cpu, memory, screen, null);
+      ByteBuffer rom = ByteBuffer.allocate(program.length*2);
+      for (int i = 0; i < program.length; i++)
+      {
+        rom.putShort((short)program[i]);
+      }
+      rom.flip();
+      memory.load(rom, Memory.PROGRAM_START);
+
+      core.setSoundEnabled(false);
+      core.setUseBlocks(useBlocks);
+      if(precompile)
+        core.compileProgram();
+      try
+      {
+        executed = core.runFor(instructions);
+      } catch (RuntimeException ex) //random code can overflow the stack, the same way in every engine
+      {
+        crash = ex;
+      }
+
+      MachineState machineState = new MachineState(memory.getSize());
+      machineState.capture(cpu, memory, screen, core);
+      state = machineState.getBlock();
+      core.close();
+    }
+
+    /**
+     * Returns how many instructions the interpreter should run to end up
+     * where this run did: as many as it ran, or as many as asked for if it
+     * crashed, since the interpreter should crash at the same point.
+     */
+    public long getLength(long instructions)
+    {
+      return crash == null ? executed : instructions;
+    }
+
+    /**
+     * Returns what differs from the interpreted run, or null if nothing.
+     * @param engine names this run's engine in the answer
+     */
+    public String compareTo(Run interpreted, String engine)
+    {
+      if((crash == null) != (interpreted.crash == null))
+        return engine + ", " + (crash == null ? "only the interpreter crashed: " + interpreted.crash
+                                               : "only the blocks crashed: " + crash);
+      if(crash == null && executed != interpreted.executed)
+        return engine + ", ran " + executed + " instructions against the interpreter's " + interpreted.executed;
+      if(!state.equals(interpreted.state))
+      {
+        int offset = 0;
+        while(state.get(offset) == interpreted.state.get(offset))
+          offset++;
+        return engine + ", machine state differs first at offset " + offset;
+      }
+      return null;
+    }
+  }
+}
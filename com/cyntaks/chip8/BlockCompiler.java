@@ -0,0 +1,990 @@
+package com.cyntaks.chip8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Translates a basic block into a class of its own whose run() method is
+ * the block as straight-line JVM bytecode, so HotSpot can compile it like
+ * any other method instead of going through CPUCore's dispatch switch.
+ * Register arithmetic, constant loads and the I register are emitted inline
+ * on the CPU's register array; every other instruction calls back into
+ * CPUCore.step() and so stays exactly as the interpreter runs it.
+ *
+ * The class files are written by hand, in the Java 5 format so that no
+ * stack map frames are needed, and each is defined by a class loader of its
+ * own. Generated classes are shared by every emulator in the JVM, keyed by
+ * the block's address and contents, so running the same ROM again only
+ * costs creating the objects; the least recently used ones are let go
+ * beyond MAX_CACHED_CLASSES, and can then be unloaded.
+ *
+ * A precompiled program is instead written as one class, see
+ * CompiledProgram: each region method starts with a lookupswitch on the
+ * program counter, and after each block either branches straight to the
+ * next one or, for a call-back that could have gone several ways, compares
+ * the program counter against the addresses the block can go to before
+ * falling back to the switch.
+ */
+public class BlockCompiler
+{
+  private static final String PACKAGE = "com/cyntaks/chip8/blocks/";
+  private static final String SUPER = "com/cyntaks/chip8/CompiledBlock";
+  private static final String PROGRAM = "com/cyntaks/chip8/CompiledProgram";
+  private static final String CONSTRUCTOR_TYPE = "(Lcom/cyntaks/chip8/CPUCore;Lcom/cyntaks/chip8/CPU;[Lcom/cyntaks/chip8/Instruction;)V";
+  private static final int MAX_STACK = 8;
+  private static final int MAX_LOCALS = 5;
+  private static final int MAX_CACHED_CLASSES = 4096;
+  private static final int MAX_REGION_SIZE = 7000; //estimated bytes, below HotSpot's 8000 byte limit
+  private static final int MAX_BRANCH = Short.MAX_VALUE;
+
+  //locals of the generated run() and region methods, besides the register array kept in local 3
+  private static final int CODE_VERSION = 1;
+  private static final int EXECUTED = 2;
+  private static final int SUM = 4;
+  private static final int PC = 5; //region methods only
+
+  //opcodes
+  private static final int ICONST_0 = 0x03;
+  private static final int BIPUSH = 0x10;
+  private static final int SIPUSH = 0x11;
+  private static final int ILOAD = 0x15;
+  private static final int ILOAD_1 = 0x1B;
+  private static final int ILOAD_2 = 0x1C;
+  private static final int ILOAD_3 = 0x1D;
+  private static final int ALOAD_0 = 0x2A;
+  private static final int ALOAD_1 = 0x2B;
+  private static final int ALOAD_2 = 0x2C;
+  private static final int ALOAD_3 = 0x2D;
+  private static final int IALOAD = 0x2E;
+  private static final int BALOAD = 0x33;
+  private static final int ISTORE = 0x36;
+  private static final int ASTORE_3 = 0x4E;
+  private static final int IASTORE = 0x4F;
+  private static final int DUP = 0x59;
+  private static final int DUP2 = 0x5C;
+  private static final int IADD = 0x60;
+  private static final int ISUB = 0x64;
+  private static final int LSUB = 0x65;
+  private static final int ISHL = 0x78;
+  private static final int ISHR = 0x7A;
+  private static final int IUSHR = 0x7C;
+  private static final int LUSHR = 0x7D;
+  private static final int IAND = 0x7E;
+  private static final int IOR = 0x80;
+  private static final int IXOR = 0x82;
+  private static final int I2L = 0x85;
+  private static final int L2I = 0x88;
+  private static final int IFEQ = 0x99;
+  private static final int IFNE = 0x9A;
+  private static final int IF_ICMPEQ = 0x9F;
+  private static final int IF_ICMPNE = 0xA0;
+  private static final int IF_ICMPGE = 0xA2;
+  private static final int GOTO = 0xA7;
+  private static final int LOOKUPSWITCH = 0xAB;
+  private static final int IRETURN = 0xAC;
+  private static final int RETURN = 0xB1;
+  private static final int GETFIELD = 0xB4;
+  private static final int PUTFIELD = 0xB5;
+  private static final int INVOKEVIRTUAL = 0xB6;
+  private static final int INVOKESPECIAL = 0xB7;
+
+  //constructors of the generated classes by block, least recently used first
+  private static final Map<String, Constructor<?>> classes = new LinkedHashMap<String, Constructor<?>>(64, .75f, true) {
+    protected boolean removeEldestEntry(Map.Entry<String, Constructor<?>> eldest)
+    {
+      return size() > MAX_CACHED_CLASSES;
+    }
+  };
+
+  private CPUCore core;
+  private CPU cpu;
+  private int classCount;
+  private int failures;
+
+  //the class being written
+  private String superName;
+  private ByteArrayOutputStream pool;
+  private DataOutputStream poolOut;
+  private HashMap<String, Integer> poolIndices;
+  private int poolSize;
+  private ByteArrayOutputStream code;
+
+  //the region method being written: label positions, and branches to patch as {opcode, offset, label, width}
+  private int[] labels;
+  private ArrayList<int[]> fixups;
+
+  public BlockCompiler(CPUCore core, CPU cpu)
+  {
+    this.core = core;
+    this.cpu = cpu;
+  }
+
+  /**
+   * Instantiates the class for a block, generating and loading it first if
+   * no emulator has compiled the same block yet.
+   * @return the block ready to run, or null if it couldn't be compiled
+   */
+  public CompiledBlock compile(BasicBlock block)
+  {
+    String key = getKey(block);
+    try
+    {
+      Constructor<?> constructor = lookup(key);
+      if(constructor == null)
+      {
+        String name = PACKAGE + "Block" + Integer.toHexString(block.getStart()).toUpperCase() + "_" + classCount++;
+        constructor = define(key, name, write(name, block));
+      }
+      return (CompiledBlock)constructor.newInstance(core, cpu, block.getInstructions());
+    } catch (Exception ex)
+    {
+      failures++;
+      ex.printStackTrace();
+    } catch (LinkageError ex) //the generated class didn't verify
+    {
+      failures++;
+      ex.printStackTrace();
+    }
+    return null;
+  }
+
+  /**
+   * Instantiates one class for all the given blocks, which must be in
+   * address order, generating it first if no emulator has compiled the same
+   * blocks yet.
+   * @return the program ready to run, or null if it couldn't be compiled
+   */
+  public CompiledProgram compileProgram(BasicBlock[] blocks)
+  {
+    int[] regions = getRegions(blocks);
+    int[] starts = new int[blocks.length];
+    ArrayList<Instruction> instructions = new ArrayList<Instruction>();
+    StringBuffer key = new StringBuffer("P");
+    for (int i = 0; i < blocks.length; i++)
+    {
+      starts[i] = blocks[i].getStart();
+      Instruction[] blockInstructions = blocks[i].getInstructions();
+      for (int j = 0; j < blockInstructions.length; j++)
+      {
+        instructions.add(blockInstructions[j]);
+      }
+      key.append(getKey(blocks[i])).append('|');
+    }
+
+    try
+    {
+      Constructor<?> constructor = lookup(key.toString());
+      if(constructor == null)
+      {
+        String name = PACKAGE + "Program" + Integer.toHexString(starts[0]).toUpperCase() + "_" + classCount++;
+        constructor = define(key.toString(), name, writeProgram(name, blocks, regions));
+      }
+      CompiledProgram program = (CompiledProgram)constructor.newInstance(core, cpu,
+                                  instructions.toArray(new Instruction[instructions.size()]));
+      program.setLayout(starts, regions);
+      return program;
+    } catch (Exception ex)
+    {
+      failures++;
+      ex.printStackTrace();
+    } catch (LinkageError ex) //the generated class didn't verify
+    {
+      failures++;
+      ex.printStackTrace();
+    }
+    return null;
+  }
+
+  private Constructor<?> lookup(String key)
+  {
+    synchronized(classes)
+    {
+      return classes.get(key);
+    }
+  }
+
+  private Constructor<?> define(String key, String name, byte[] bytes) throws NoSuchMethodException
+  {
+    Class<?> generated = new BlockLoader().define(name.replace('/', '.'), bytes);
+    Constructor<?> constructor = generated.getConstructor(CPUCore.class, CPU.class, Instruction[].class);
+    synchronized(classes)
+    {
+      classes.put(key, constructor);
+    }
+    return constructor;
+  }
+
+  /**
+   * Splits blocks in address order into regions whose methods should stay
+   * within MAX_REGION_SIZE, going by the most bytes an instruction can
+   * take. Depends on nothing but the blocks, so a cached class gets the
+   * same layout again.
+   * @return the region of each block
+   */
+  private static int[] getRegions(BasicBlock[] blocks)
+  {
+    int[] regions = new int[blocks.length];
+    int region = 0;
+    int size = 0;
+    for (int i = 0; i < blocks.length; i++)
+    {
+      int blockSize = 64 + 48*blocks[i].getLength() + 12*blocks[i].getSuccessors().length;
+      if(size > 0 && size + blockSize > MAX_REGION_SIZE)
+      {
+        region++;
+        size = 0;
+      }
+      size += blockSize;
+      regions[i] = region;
+    }
+    return regions;
+  }
+
+  /**
+   * Identifies what a block compiles to: its address, which the generated
+   * code uses, and the opcodes and fusion of its instructions.
+   */
+  private static String getKey(BasicBlock block)
+  {
+    StringBuffer key = new StringBuffer(Integer.toHexString(block.getStart()));
+    Instruction[] instructions = block.getInstructions();
+    for (int i = 0; i < instructions.length; i++)
+    {
+      key.append(instructions[i].isFused() ? '+' : ' ');
+      for (int j = 0; j < instructions[i].getLength()/2; j++)
+      {
+        key.append(Integer.toHexString(instructions[i].getPart(j).getOpcode())).append(',');
+      }
+    }
+    return key.toString();
+  }
+
+  private byte[] write(String name, BasicBlock block) throws IOException
+  {
+    startClass(SUPER);
+    byte[] constructor = writeConstructor();
+    byte[] run = writeRun(block);
+    return finishClass(name, new String[] {"<init>", "run"}, new String[] {CONSTRUCTOR_TYPE, "()I"},
+                       new byte[][] {constructor, run}, new int[] {4, MAX_LOCALS});
+  }
+
+  private byte[] writeProgram(String name, BasicBlock[] blocks, int[] regions) throws IOException
+  {
+    startClass(PROGRAM);
+    int count = regions[regions.length-1] + 1;
+    String[] names = new String[count+2];
+    String[] types = new String[count+2];
+    byte[][] bodies = new byte[count+2][];
+    int[] maxLocals = new int[count+2];
+    names[0] = "<init>";
+    types[0] = CONSTRUCTOR_TYPE;
+    bodies[0] = writeConstructor();
+    maxLocals[0] = 4;
+    names[1] = "runRegion";
+    types[1] = "(III)I";
+    bodies[1] = writeRunRegion(name, count);
+    maxLocals[1] = 4;
+    for (int region = 0; region < count; region++)
+    {
+      names[region+2] = "r" + region;
+      types[region+2] = "(II)I";
+      bodies[region+2] = writeRegion(blocks, regions, region);
+      maxLocals[region+2] = PC + 1;
+    }
+    return finishClass(name, names, types, bodies, maxLocals);
+  }
+
+  private void startClass(String superName)
+  {
+    this.superName = superName;
+    pool = new ByteArrayOutputStream();
+    poolOut = new DataOutputStream(pool);
+    poolIndices = new HashMap<String, Integer>();
+    poolSize = 1;
+  }
+
+  private byte[] finishClass(String name, String[] methodNames, String[] methodTypes, byte[][] bodies, int[] maxLocals) throws IOException
+  {
+    int thisClass = classEntry(name);
+    int superClass = classEntry(superName);
+    int codeName = utf8("Code");
+    int[] nameIndices = new int[methodNames.length];
+    int[] typeIndices = new int[methodNames.length];
+    for (int i = 0; i < methodNames.length; i++)
+    {
+      nameIndices[i] = utf8(methodNames[i]);
+      typeIndices[i] = utf8(methodTypes[i]);
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(0xCAFEBABE);
+    out.writeShort(0);
+    out.writeShort(49); //Java 5, verified without stack map frames
+    out.writeShort(poolSize);
+    pool.writeTo(out);
+    out.writeShort(0x0001 | 0x0010 | 0x0020); //public final super
+    out.writeShort(thisClass);
+    out.writeShort(superClass);
+    out.writeShort(0); //interfaces
+    out.writeShort(0); //fields
+    out.writeShort(methodNames.length);
+    for (int i = 0; i < methodNames.length; i++)
+    {
+      writeMethod(out, nameIndices[i], typeIndices[i], codeName, bodies[i], maxLocals[i]);
+    }
+    out.writeShort(0); //attributes
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private void writeMethod(DataOutputStream out, int name, int type, int codeName, byte[] body, int maxLocals) throws IOException
+  {
+    out.writeShort(0x0001); //public
+    out.writeShort(name);
+    out.writeShort(type);
+    out.writeShort(1);
+    out.writeShort(codeName);
+    out.writeInt(12 + body.length);
+    out.writeShort(MAX_STACK);
+    out.writeShort(maxLocals);
+    out.writeInt(body.length);
+    out.write(body);
+    out.writeShort(0); //exception table
+    out.writeShort(0); //attributes
+  }
+
+  private byte[] writeConstructor() throws IOException
+  {
+    code = new ByteArrayOutputStream();
+    code.write(ALOAD_0);
+    code.write(ALOAD_1);
+    code.write(ALOAD_2);
+    code.write(ALOAD_3);
+    invoke(INVOKESPECIAL, "<init>", CONSTRUCTOR_TYPE);
+    code.write(RETURN);
+    return code.toByteArray();
+  }
+
+  /**
+   * Writes run(). Instructions emitted inline only touch the registers, so
+   * the timers, screen steps and program counter are caught up with them in
+   * one settle() call before the next call-back and at the end of the block.
+   * After each call-back the block stops if the interpreter would have.
+   */
+  private byte[] writeRun(BasicBlock block) throws IOException
+  {
+    code = new ByteArrayOutputStream();
+    code.write(ALOAD_0);
+    invoke(INVOKEVIRTUAL, "codeVersion", "()I");
+    store(CODE_VERSION);
+    code.write(ICONST_0);
+    store(EXECUTED);
+    code.write(ALOAD_0);
+    field("v", "[I");
+    code.write(ASTORE_3);
+
+    writeInstructions(block, 0);
+    load(EXECUTED);
+    code.write(IRETURN);
+    return code.toByteArray();
+  }
+
+  /**
+   * Writes the block's instructions, settling the inline ones left at the
+   * end, and returns early after a call-back but the last one if the
+   * interpreter would have stopped there.
+   * @param first the index step() knows the block's first instruction by
+   * @return whether the block ended on an inline instruction, which leaves
+   * the program counter at its end
+   */
+  private boolean writeInstructions(BasicBlock block, int first) throws IOException
+  {
+    Instruction[] instructions = block.getInstructions();
+    int address = block.getStart();
+    int inline = 0; //instructions run inline since the last settle
+    for (int i = 0; i < instructions.length; i++)
+    {
+      Instruction instruction = instructions[i];
+      if(writeInline(instruction))
+        inline += instruction.getLength()/2;
+      else
+      {
+        if(inline > 0)
+        {
+          settle(address, inline);
+          inline = 0;
+        }
+        load(EXECUTED);
+        code.write(ALOAD_0);
+        push(first + i);
+        invoke(INVOKEVIRTUAL, "step", "(I)I");
+        code.write(IADD);
+        store(EXECUTED);
+
+        if(i < instructions.length-1)
+        {
+          code.write(ALOAD_0);
+          load(CODE_VERSION);
+          invoke(INVOKEVIRTUAL, "interrupted", "(I)Z");
+          code.write(IFEQ);
+          code.write(0);
+          code.write(6); //past the early return
+          load(EXECUTED);
+          code.write(IRETURN);
+        }
+      }
+      address += instruction.getLength();
+    }
+
+    if(inline > 0)
+      settle(address, inline);
+    return inline > 0;
+  }
+
+  private byte[] writeRunRegion(String name, int count) throws IOException
+  {
+    code = new ByteArrayOutputStream();
+    for (int region = 0; region < count; region++)
+    {
+      code.write(ILOAD_1);
+      push(region);
+      code.write(IF_ICMPNE);
+      code.write(0);
+      code.write(10); //past the call
+      code.write(ALOAD_0);
+      code.write(ILOAD_2);
+      code.write(ILOAD_3);
+      code.write(INVOKEVIRTUAL);
+      writeIndex(memberEntry(10, name, "r" + region, "(II)I"));
+      code.write(IRETURN);
+    }
+    code.write(ILOAD_3);
+    code.write(IRETURN);
+    return code.toByteArray();
+  }
+
+  /**
+   * Writes the method running one region's blocks. The program counter is
+   * switched on at the start and wherever a block could have gone anywhere;
+   * every block checks the budget, interrupts and whether it was dropped
+   * before running, the same checks CPUCore makes between blocks.
+   */
+  private byte[] writeRegion(BasicBlock[] blocks, int[] regions, int region) throws IOException
+  {
+    code = new ByteArrayOutputStream();
+    labels = new int[blocks.length+3];
+    fixups = new ArrayList<int[]>();
+    int stop = blocks.length; //labels past the blocks'
+    int cross = blocks.length+1;
+    int dispatch = blocks.length+2;
+    HashMap<Integer, Integer> indices = new HashMap<Integer, Integer>();
+    int first = 0; //the first instruction of each block, as step() counts
+    int[] firsts = new int[blocks.length];
+    for (int i = 0; i < blocks.length; i++)
+    {
+      indices.put(blocks[i].getStart(), i);
+      firsts[i] = first;
+      first += blocks[i].getLength();
+    }
+
+    code.write(ALOAD_0);
+    field("v", "[I");
+    code.write(ASTORE_3);
+
+    labels[dispatch] = code.size();
+    code.write(ALOAD_0);
+    field("cpu", "Lcom/cyntaks/chip8/CPU;");
+    invokeCPU("getProgramCounter", "()I");
+    int switchStart = code.size();
+    code.write(LOOKUPSWITCH);
+    while(code.size() % 4 != 0)
+    {
+      code.write(0);
+    }
+    branchOffset(switchStart, cross, 4);
+    int cases = 0;
+    for (int i = 0; i < blocks.length; i++)
+    {
+      if(regions[i] == region)
+        cases++;
+    }
+    writeInt(cases);
+    for (int i = 0; i < blocks.length; i++) //in address order, as the switch needs
+    {
+      if(regions[i] == region)
+      {
+        writeInt(blocks[i].getStart());
+        branchOffset(switchStart, i, 4);
+      }
+    }
+
+    for (int i = 0; i < blocks.length; i++)
+    {
+      if(regions[i] != region)
+        continue;
+      labels[i] = code.size();
+      load(EXECUTED);
+      code.write(ALOAD_0);
+      field(PROGRAM, "budget", "I");
+      branch(IF_ICMPGE, stop);
+      code.write(ALOAD_0);
+      load(CODE_VERSION);
+      invoke(INVOKEVIRTUAL, "interrupted", "(I)Z");
+      branch(IFNE, stop);
+      code.write(ALOAD_0);
+      field(PROGRAM, "live", "[Z");
+      push(i);
+      code.write(BALOAD);
+      branch(IFEQ, stop);
+
+      if(writeInstructions(blocks[i], firsts[i]))
+        branch(GOTO, getLabel(blocks[i].getEnd(), indices, regions, region, cross));
+      else
+      {
+        code.write(ALOAD_0);
+        field("cpu", "Lcom/cyntaks/chip8/CPU;");
+        invokeCPU("getProgramCounter", "()I");
+        store(PC);
+        int[] successors = blocks[i].getSuccessors();
+        for (int j = 0; j < successors.length; j++)
+        {
+          load(PC);
+          push(successors[j]);
+          branch(IF_ICMPEQ, getLabel(successors[j], indices, regions, region, cross));
+        }
+        branch(GOTO, dispatch);
+      }
+    }
+
+    labels[stop] = code.size();
+    load(EXECUTED);
+    code.write(IRETURN);
+    labels[cross] = code.size();
+    code.write(ALOAD_0);
+    push(1);
+    code.write(PUTFIELD);
+    writeIndex(memberEntry(9, PROGRAM, "crossed", "Z"));
+    load(EXECUTED);
+    code.write(IRETURN);
+
+    if(code.size() > MAX_BRANCH)
+      throw new IOException("region " + region + " is " + code.size() + " bytes, too long to branch across");
+    byte[] bytes = code.toByteArray();
+    for (int i = 0; i < fixups.size(); i++)
+    {
+      int[] fixup = fixups.get(i);
+      int offset = labels[fixup[2]] - fixup[0];
+      for (int j = 0; j < fixup[3]; j++)
+      {
+        bytes[fixup[1]+j] = (byte)(offset >> 8*(fixup[3]-1-j));
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Returns the label to branch to for going to the given address: its
+   * block if that is in the same region, otherwise the exit that lets
+   * CompiledProgram find the region.
+   */
+  private static int getLabel(int address, HashMap<Integer, Integer> indices, int[] regions, int region, int cross)
+  {
+    Integer index = indices.get(address);
+    return index != null && regions[index] == region ? index : cross;
+  }
+
+  private void branch(int opcode, int label)
+  {
+    int start = code.size();
+    code.write(opcode);
+    branchOffset(start, label, 2);
+  }
+
+  /**
+   * Leaves room for the offset of a label from the instruction at start,
+   * filled in once the region is written.
+   */
+  private void branchOffset(int start, int label, int width)
+  {
+    fixups.add(new int[] {start, code.size(), label, width});
+    for (int i = 0; i < width; i++)
+    {
+      code.write(0);
+    }
+  }
+
+  private void writeInt(int value)
+  {
+    code.write(value >> 24);
+    code.write(value >> 16);
+    code.write(value >> 8);
+    code.write(value);
+  }
+
+  /**
+   * Emits the instruction inline if it only works on the registers.
+   * @return whether it was emitted
+   */
+  private boolean writeInline(Instruction instruction) throws IOException
+  {
+    int x = instruction.getX();
+    int y = instruction.getY();
+    switch(instruction.getOperation())
+    {
+      case Instruction.MOV: //vx = nn
+        setRegister(x, instruction.getNN());
+      break;
+      case Instruction.MOV_MOV:
+        setRegister(x, instruction.getNN());
+        setRegister(instruction.getPart(1).getX(), instruction.getPart(1).getNN());
+        code.write(ALOAD_0);
+        push(Instruction.MOV_MOV);
+        invoke(INVOKEVIRTUAL, "fused", "(I)V");
+      break;
+      case Instruction.ADD: //vx = (vx + nn) & 0xFF
+        updateRegister(x);
+        push(instruction.getNN());
+        code.write(IADD);
+        push(0xFF);
+        code.write(IAND);
+        code.write(IASTORE);
+      break;
+      case Instruction.MOV_REG: //vx = vy
+        code.write(ALOAD_3);
+        push(x);
+        loadRegister(y);
+        code.write(IASTORE);
+      break;
+      case Instruction.OR:
+        updateRegister(x);
+        loadRegister(y);
+        code.write(IOR);
+        code.write(IASTORE);
+      break;
+      case Instruction.AND:
+        updateRegister(x);
+        loadRegister(y);
+        code.write(IAND);
+        code.write(IASTORE);
+      break;
+      case Instruction.XOR:
+        updateRegister(x);
+        loadRegister(y);
+        code.write(IXOR);
+        code.write(IASTORE);
+      break;
+      case Instruction.ADD_REG: //sum = vx + vy; vx = sum & 0xFF; vf = carry, or 0 if sum < 0
+        loadRegister(x);
+        loadRegister(y);
+        code.write(IADD);
+        store(SUM);
+        code.write(ALOAD_3);
+        push(x);
+        load(SUM);
+        push(0xFF);
+        code.write(IAND);
+        code.write(IASTORE);
+        code.write(ALOAD_3);
+        push(CPU.VF);
+        load(SUM);
+        push(0x100);
+        code.write(IAND);
+        push(8);
+        code.write(IUSHR);
+        load(SUM);
+        push(31);
+        code.write(ISHR);
+        push(-1);
+        code.write(IXOR);
+        code.write(IAND);
+        code.write(IASTORE);
+      break;
+      case Instruction.SUB: //vf = vx >= vy; vx = (vx - vy) & 0xFF
+        setNotBelow(x, y);
+        setDifference(x, x, y);
+      break;
+      case Instruction.RSB: //vf = vy >= vx; vx = (vy - vx) & 0xFF
+        setNotBelow(y, x);
+        setDifference(x, y, x);
+      break;
+      case Instruction.SHR: //vf = vx & 1; vx = vx >>> 1
+        code.write(ALOAD_3);
+        push(CPU.VF);
+        loadRegister(x);
+        push(1);
+        code.write(IAND);
+        code.write(IASTORE);
+        updateRegister(x);
+        push(1);
+        code.write(IUSHR);
+        code.write(IASTORE);
+      break;
+      case Instruction.SHL: //vf = (vx & 0x80) >>> 7; vx = (vx << 1) & 0xFF
+        code.write(ALOAD_3);
+        push(CPU.VF);
+        loadRegister(x);
+        push(0x80);
+        code.write(IAND);
+        push(7);
+        code.write(IUSHR);
+        code.write(IASTORE);
+        updateRegister(x);
+        push(1);
+        code.write(ISHL);
+        push(0xFF);
+        code.write(IAND);
+        code.write(IASTORE);
+      break;
+      case Instruction.MVI: //i = nnn
+        code.write(ALOAD_0);
+        field("cpu", "Lcom/cyntaks/chip8/CPU;");
+        push(instruction.getNNN());
+        invokeCPU("setAddressRegister", "(I)V");
+      break;
+      case Instruction.ADI: //i = i + vx
+        code.write(ALOAD_0);
+        field("cpu", "Lcom/cyntaks/chip8/CPU;");
+        code.write(DUP);
+        invokeCPU("getAddressRegister", "()I");
+        loadRegister(x);
+        code.write(IADD);
+        invokeCPU("setAddressRegister", "(I)V");
+      break;
+      default:
+        return false;
+    }
+    return true;
+  }
+
+  private void setRegister(int register, int value) throws IOException
+  {
+    code.write(ALOAD_3);
+    push(register);
+    push(value);
+    code.write(IASTORE);
+  }
+
+  private void loadRegister(int register) throws IOException
+  {
+    code.write(ALOAD_3);
+    push(register);
+    code.write(IALOAD);
+  }
+
+  /**
+   * Leaves the registers, the index and the register's value on the stack,
+   * ready for an operation on it and an IASTORE.
+   */
+  private void updateRegister(int register) throws IOException
+  {
+    code.write(ALOAD_3);
+    push(register);
+    code.write(DUP2);
+    code.write(IALOAD);
+  }
+
+  /**
+   * vf = first >= second, computed without a branch as
+   * 1 - (((long)first - second) >>> 63).
+   */
+  private void setNotBelow(int first, int second) throws IOException
+  {
+    code.write(ALOAD_3);
+    push(CPU.VF);
+    push(1);
+    loadRegister(first);
+    code.write(I2L);
+    loadRegister(second);
+    code.write(I2L);
+    code.write(LSUB);
+    push(63);
+    code.write(LUSHR);
+    code.write(L2I);
+    code.write(ISUB);
+    code.write(IASTORE);
+  }
+
+  /**
+   * target = (first - second) & 0xFF, reading the operands after vf was set.
+   */
+  private void setDifference(int target, int first, int second) throws IOException
+  {
+    code.write(ALOAD_3);
+    push(target);
+    loadRegister(first);
+    loadRegister(second);
+    code.write(ISUB);
+    push(0xFF);
+    code.write(IAND);
+    code.write(IASTORE);
+  }
+
+  private void settle(int address, int steps) throws IOException
+  {
+    code.write(ALOAD_0);
+    push(address);
+    push(steps);
+    invoke(INVOKEVIRTUAL, "settle", "(II)V");
+    load(EXECUTED);
+    push(steps);
+    code.write(IADD);
+    store(EXECUTED);
+  }
+
+  private void push(int value) throws IOException
+  {
+    if(value >= -1 && value <= 5)
+      code.write(ICONST_0 + value);
+    else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+    {
+      code.write(BIPUSH);
+      code.write(value);
+    }
+    else
+    {
+      code.write(SIPUSH);
+      code.write(value >> 8);
+      code.write(value);
+    }
+  }
+
+  private void load(int local)
+  {
+    code.write(ILOAD);
+    code.write(local);
+  }
+
+  private void store(int local)
+  {
+    code.write(ISTORE);
+    code.write(local);
+  }
+
+  private void field(String name, String type) throws IOException
+  {
+    field(superName, name, type);
+  }
+
+  private void field(String owner, String name, String type) throws IOException
+  {
+    code.write(GETFIELD);
+    writeIndex(memberEntry(9, owner, name, type));
+  }
+
+  private void invoke(int opcode, String name, String type) throws IOException
+  {
+    code.write(opcode);
+    writeIndex(memberEntry(10, superName, name, type));
+  }
+
+  private void invokeCPU(String name, String type) throws IOException
+  {
+    code.write(INVOKEVIRTUAL);
+    writeIndex(memberEntry(10, "com/cyntaks/chip8/CPU", name, type));
+  }
+
+  private void writeIndex(int index)
+  {
+    code.write(index >> 8);
+    code.write(index);
+  }
+
+  private int utf8(String value) throws IOException
+  {
+    Integer index = poolIndices.get("U" + value);
+    if(index == null)
+    {
+      poolOut.writeByte(1);
+      poolOut.writeUTF(value);
+      index = add("U" + value);
+    }
+    return index;
+  }
+
+  private int classEntry(String name) throws IOException
+  {
+    Integer index = poolIndices.get("C" + name);
+    if(index == null)
+    {
+      int nameIndex = utf8(name);
+      poolOut.writeByte(7);
+      poolOut.writeShort(nameIndex);
+      index = add("C" + name);
+    }
+    return index;
+  }
+
+  /**
+   * Returns the pool entry for a field (tag 9) or method (tag 10) of owner.
+   */
+  private int memberEntry(int tag, String owner, String name, String type) throws IOException
+  {
+    String key = tag + owner + "." + name + type;
+    Integer index = poolIndices.get(key);
+    if(index == null)
+    {
+      int ownerIndex = classEntry(owner);
+      int nameIndex = utf8(name);
+      int typeIndex = utf8(type);
+      Integer nameAndType = poolIndices.get("N" + name + type);
+      if(nameAndType == null)
+      {
+        poolOut.writeByte(12);
+        poolOut.writeShort(nameIndex);
+        poolOut.writeShort(typeIndex);
+        nameAndType = add("N" + name + type);
+      }
+      poolOut.writeByte(tag);
+      poolOut.writeShort(ownerIndex);
+      poolOut.writeShort(nameAndType);
+      index = add(key);
+    }
+    return index;
+  }
+
+  private int add(String key)
+  {
+    poolIndices.put(key, poolSize);
+    return poolSize++;
+  }
+
+  /**
+   * Returns how many classes this compiler has generated, not counting the
+   * ones it found already generated.
+   */
+  public int getClassCount()
+  {
+    return classCount;
+  }
+
+  /**
+   * Returns how many blocks failed to compile and were left interpreted.
+   */
+  public int getFailures()
+  {
+    return failures;
+  }
+
+  /**
+   * Defines one generated class.
+   */
+  private static class BlockLoader extends ClassLoader
+  {
+    public BlockLoader()
+    {
+      super(CompiledBlock.class.getClassLoader());
+    }
+
+    public Class<?> define(String name, byte[] bytes)
+    {
+      return defineClass(name, bytes, 0, bytes.length);
+    }
+  }
+}
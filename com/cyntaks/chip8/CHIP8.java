@@ -1,19 +1,15 @@
 package com.cyntaks.chip8;
 
+import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.Toolkit;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import javax.swing.*;
-import org.lwjgl.LWJGLException;
 
 public class CHIP8 implements KeyListener
 {
@@ -22,6 +18,8 @@ public class CHIP8 implements KeyListener
   private CPUCore cpuCore;
   private Screen screen;
   private File lastRom;
+  private boolean precompile;
+  private MachineState savedState; //reused by every saveState()
     
   private static final int TOTAL_MEMORY = 4096;
   
@@ -35,15 +33,29 @@ public class CHIP8 implements KeyListener
     memory = new Memory(TOTAL_MEMORY);
     cpu = new CPU();
     
+    screen = new Screen();
+    screen.setCanvas(createCanvas());
+    
+    cpuCore = new CPUCore(cpu, memory, screen, this);
+  }
+  
+  /**
+   * Shows the screen through OpenGL where it is available, and through the
+   * software renderer where LWJGL or a GL context is missing.
+   */
+  private Component createCanvas()
+  {
     try 
     {
-      screen = new Screen();
-    } catch (LWJGLException ex) 
+      return GLScreenCanvas.create(screen);
+    } catch (Exception ex) 
     {
-      ex.printStackTrace();
+      System.err.println("OpenGL unavailable, using the software renderer: " + ex);
+    } catch (LinkageError ex) //LWJGL or its native libraries are missing
+    {
+      System.err.println("OpenGL unavailable, using the software renderer: " + ex);
     }
-    
-    cpuCore = new CPUCore(cpu, memory, screen, this);
+    return new SoftwareScreenCanvas(screen);
   }
   
   public void loadProgram(File file)
@@ -55,29 +67,12 @@ public class CHIP8 implements KeyListener
     
     try 
     {
-      FileInputStream fi = new FileInputStream(file);
-      BufferedInputStream bi = new BufferedInputStream(fi);
-      DataInputStream dataIn = new DataInputStream(bi);
-      
-      int curByte = 0;
-      int counter = 0;
-      
-      try 
-      {
-        while((curByte = dataIn.read()) != -1)
-        {
-          int theByte = curByte & 0xFF;
-          memory.store(Memory.PROGRAM_START + counter, theByte);
-          counter++;
-        }
-        dataIn.close();
-      } catch (IOException ex) 
-      {
-        ex.printStackTrace();
-      }
+      memory.load(file.toPath());
       
+      if(precompile)
+        cpuCore.compileProgram();
       cpuCore.beginExecution();
-    } catch (FileNotFoundException ex) 
+    } catch (IOException ex) 
     {
       ex.printStackTrace();
     }
@@ -215,6 +210,14 @@ public class CHIP8 implements KeyListener
     memory.reset();
   }
   
+  /**
+   * Stops the emulator and releases its audio line, before exiting.
+   */
+  public void close()
+  {
+    cpuCore.close();
+  }
+  
   public void loadLastRom()
   {
     if(lastRom != null);
@@ -225,36 +228,50 @@ public class CHIP8 implements KeyListener
   {
     return screen;
   }
-  
-  public void recreateScreen()
+
+  /**
+   * Returns the component showing the screen, for adding to a window.
+   */
+  public Component getCanvas()
   {
-    try 
-    {
-      int[] data = screen.getData();
-      int[] renderData = screen.getRenderData();
-      int[] timers = screen.getTimers();
-      int[] deleteBuffer = screen.getDeleteBuffer();
-      boolean paused = screen.isPaused();
-      boolean reduceFlicker = screen.isReduceFlicker();
-      boolean useColorFading = screen.isUseColorFading();
-      boolean useBlur = screen.isUseBlur();
-      boolean useSChip = screen.isSchip();
-      
-      screen = new Screen();
-      screen.setUseSChip(useSChip);
-      screen.setData(data);
-      screen.setRenderData(renderData);
-      screen.setTimers(timers);
-      screen.setDeleteBuffer(deleteBuffer);
-      screen.setPaused(paused);
-      screen.setReduceFlicker(reduceFlicker);
-      screen.setUseColorFading(useColorFading);
-      screen.setUseBlur(useBlur);
-      
-      cpuCore.setScreen(screen);
-    } catch (LWJGLException ex) 
-    {
-      ex.printStackTrace();
-    }
+    return screen.getCanvas();
+  }
+
+  /**
+   * Captures the whole machine into a snapshot. The machine should be
+   * paused first. The same MachineState is returned every time and the
+   * next call overwrites it; use copyTo() to keep one.
+   */
+  public MachineState saveState()
+  {
+    if(savedState == null)
+      savedState = new MachineState(TOTAL_MEMORY);
+    savedState.capture(cpu, memory, screen, cpuCore);
+    return savedState;
+  }
+
+  /**
+   * Puts the machine back into a state from saveState(). The machine should
+   * be paused first.
+   */
+  public void restoreState(MachineState state)
+  {
+    state.restore(cpu, memory, screen, cpuCore);
+  }
+
+  public boolean isPrecompile()
+  {
+    return precompile;
+  }
+
+  /**
+   * When set, loadProgram() compiles every statically reachable block of
+   * each ROM to bytecode up front, into one class per ROM, instead of
+   * waiting for blocks to get hot. Blocks branch straight to each other
+   * where the target is known, and switch on the PC where it isn't.
+   */
+  public void setPrecompile(boolean precompile)
+  {
+    this.precompile = precompile;
   }
 }
\ No newline at end of file
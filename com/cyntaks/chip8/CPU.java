@@ -71,6 +71,29 @@ public class CPU
     return dataRegisters[register];
   }
 
+  /**
+   * Returns the data registers themselves, V0 to VF.
+   */
+  public int[] getRegisters()
+  {
+    return dataRegisters;
+  }
+
+  public int getStackPointer()
+  {
+    return stackPointer;
+  }
+
+  public void setStackPointer(int stackPointer)
+  {
+    this.stackPointer = stackPointer;
+  }
+
+  public int[] getStack()
+  {
+    return stack;
+  }
+
   public int getAddressRegister()
   {
     return addressRegister;
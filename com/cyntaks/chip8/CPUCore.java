@@ -1,19 +1,9 @@
 package com.cyntaks.chip8;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
-import java.net.URL;
-import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.DataLine;
-import javax.sound.sampled.LineUnavailableException;
-import javax.sound.sampled.SourceDataLine;
-import javax.sound.sampled.UnsupportedAudioFileException;
+import java.util.ArrayList;
+import java.util.Random;
 import javax.swing.JOptionPane;
-import org.lwjgl.Sys;
-import org.lwjgl.opengl.Display;
 
 public class CPUCore implements Runnable
 {
@@ -21,22 +11,45 @@ public class CPUCore implements Runnable
   private CPU cpu;
   private Screen screen;
   
-  private boolean execute;
+  private volatile boolean execute; //read by the emulation thread mid-loop, so changes must show at once
+  private boolean running; //whether the emulation thread is alive, guarded by this
   private boolean debug = false;
-  private boolean paused = false;
+  private volatile boolean paused = false;
+  private boolean useBlocks = false;
+  private boolean useSpriteCache = true;
+  private int instructionsPerFrame = 0;
+  private boolean frameMode; //whether the running loop batches instructions into frames
+  private boolean idle; //set when the current frame can only spin until a timer or key event
+  private boolean turbo;
+  private boolean waitingForKey; //set when the thread should park until a key event
+  private Object idleLock; //guards parking while paused or waiting for a key
+  private long frameCount; //emulated clock, in frames since execution began
+  private long frameLimit; //frames to run before stopping by itself, 0 for no limit
+  private int screenSteps; //instructions run since the screen's fades were last advanced
+  private boolean screenChanged; //drawn on since the last frame was published, outside frame mode
+  private long sincePublish; //emulated nanoseconds since then
+  private long randomSeed;
+  private Random random;
+  private FrameScheduler scheduler;
   
   private static final float CYCLE_TIME = .015f; //milliseconds
+  private static final int SYNC_INTERVAL = 15; //instructions run between pacing waits
+  private static final int FRAME_RATE = 60;
+  private static final int DEFAULT_INSTRUCTIONS_PER_FRAME = 8; //about the speed of the original loop
   private int pauseScale;
   
   private int[] keys;
+  private int[] pendingKeys; //key changes are latched here and applied between frames
+  private ArrayList<KeyChange> inputScript; //entries in frame order, guarded by idleLock
+  private int scriptPosition; //index of the next entry to apply
   
-  private AudioFormat format;
-  private byte[] audio;
-  private boolean looping;
-  private boolean stopLoop;
-  private boolean soundEnabled;
+  private AudioEngine audio;
+  private WavRecorder recorder;
   
   private CHIP8 chip8;
+  private BlockCache blocks;
+  private int[] fusionCounts;
+  private SpriteCache spriteCache;
   
   public CPUCore(CPU cpu, Memory memory, Screen screen, CHIP8 chip8)
   {
@@ -44,159 +57,58 @@ public class CPUCore implements Runnable
     this.memory = memory;
     this.cpu = cpu;
     this.screen = screen;
+    blocks = new BlockCache(memory, new BlockCompiler(this, cpu));
+    fusionCounts = new int[Instruction.NUM_FUSED];
+    spriteCache = new SpriteCache(memory);
     keys = new int[16];
+    pendingKeys = new int[16];
+    inputScript = new ArrayList<KeyChange>();
+    idleLock = new Object();
+    random = new Random();
+    scheduler = new FrameScheduler(1000000000L/FRAME_RATE);
     this.pauseScale = 150;
     
-    audio = new byte[128];
-    for (int i = 0; i < audio.length; i++) 
-    {
-      audio[i] = 0;
-    }
-    play();
-    
-    format = new AudioFormat(44100, 16, 1, true, false);
-    loadSound("/sounds/beep.wav");
-    soundEnabled = true;
-    
-    
+    audio = new AudioEngine();
   }
   
   public void reset()
   {
-    looping = false;
-    stopLoop = false;
+    audio.setTone(false);
     paused = false;
     endExecution();
-    for (int i = 0; i < keys.length; i++) 
+    blocks.clear();
+    for (int i = 0; i < fusionCounts.length; i++) 
     {
-      keys[i] = 0; 
-    }
-  }
-  
-  public void loadSound(String fileName)
-    {
-      AudioInputStream audioIn = null;      
-      URL url = CPUCore.class.getResource(fileName);      
-        try 
-        {
-          audioIn = AudioSystem.getAudioInputStream(url.openStream());
-        } catch (IOException ex) {ex.printStackTrace();}
-        catch (UnsupportedAudioFileException ex){ex.printStackTrace();}
-        audio = new byte[(int)(audioIn.getFrameLength() * format.getFrameSize())];
-        DataInputStream dataIn = new DataInputStream(audioIn);
-        try {
-          dataIn.readFully(audio);
-        }catch(IOException ex){
-          ex.printStackTrace();
-        }
-        audio[0] = 0;
+      fusionCounts[i] = 0;
     }
-  
-  public void loop()
-  {
-    looping = true;
-    stopLoop = false;
-    if(soundEnabled)
+    spriteCache.clearStatistics();
+    audio.clearStatistics();
+    for (int i = 0; i < keys.length; i++) 
     {
-      new Thread(){
-        public void run()
-        {
-          int bufferSize = format.getFrameSize() * (int)(format.getSampleRate()/10);
-          byte[] buffer = new byte[bufferSize];
-          
-          SourceDataLine line = null;
-          try 
-          {
-            DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
-            line = (SourceDataLine)AudioSystem.getLine(info);
-            line.open(format, bufferSize);
-          } catch (LineUnavailableException ex) 
-          {
-            ex.printStackTrace();
-            return;
-          }
-          
-          line.start();
-          
-          try 
-          {
-            int numBytesRead = 0;
-            LoopingByteArrayInputStream bytesIn = new LoopingByteArrayInputStream(audio);
-            while(numBytesRead != -1)
-            {
-              if(!looping)
-                bytesIn.close();
-              numBytesRead = bytesIn.read(buffer, 0, bufferSize);
-              if(numBytesRead != -1)
-                line.write(buffer, 0, numBytesRead);
-              if(stopLoop)
-                looping = false;
-            }
-          } catch (IOException ex) 
-          {
-            ex.printStackTrace();
-          } 
-          finally
-          {
-            line.drain();
-            line.close();
-          }
-        }
-      }.start();
+      keys[i] = 0; 
+      pendingKeys[i] = 0;
     }
   }
   
-  public void play()
+  public void keyPressed(char key)
   {
-    if(soundEnabled)
+    synchronized(idleLock)
     {
-      new Thread(){
-        public void run()
-        {
-          int bufferSize = format.getFrameSize() * (int)(format.getSampleRate()/10);
-          byte[] buffer = new byte[bufferSize];
-          
-          SourceDataLine line = null;
-          try 
-          {
-            DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
-            line = (SourceDataLine)AudioSystem.getLine(info);
-            line.open(format, bufferSize);
-          } catch (LineUnavailableException ex) 
-          {
-            ex.printStackTrace();
-            return;
-          }
-          
-          line.start();
-          
-          int numBytesRead = 0;
-          ByteArrayInputStream bytesIn = new ByteArrayInputStream(audio);
-          while(numBytesRead != -1)
-          {
-            numBytesRead = bytesIn.read(buffer, 0, bufferSize);
-            if(numBytesRead != -1)
-              line.write(buffer, 0, numBytesRead);
-          }
-          
-          line.drain();
-          line.close();
-        }
-      }.start();
+      pendingKeys[CHIP8.hexToInt(key)] = 1;
+      if(!frameMode)
+        keys[CHIP8.hexToInt(key)] = 1;
+      idleLock.notifyAll();
     }
   }
   
-  public void keyPressed(char key)
-  {
-    keys[CHIP8.hexToInt(key)] = 1;
-  }
-  
   public void keyReleased(char key)
   {
-    keys[CHIP8.hexToInt(key)] = 0;
+    pendingKeys[CHIP8.hexToInt(key)] = 0;
+    if(!frameMode)
+      keys[CHIP8.hexToInt(key)] = 0;
   }
   
-  private boolean isKeyPressed(int key)
+  public boolean isKeyPressed(int key)
   {
     boolean pressed = keys[key] == 1 ? true : false;
     return pressed;
@@ -215,20 +127,47 @@ public class CPUCore implements Runnable
     
   public void beginExecution()
   {
+    synchronized(this)
+    {
+      execute = true;
+      running = true;
+    }
     new Thread(this).start();
   }
   
+  /**
+   * Stops execution for good and releases the audio line.
+   */
+  public void close()
+  {
+    endExecution();
+    audio.close();
+  }
+  
   public void endExecution()
   {
-    if(execute)
+    synchronized(idleLock)
     {
       execute = false;
-      synchronized(this)
+      idleLock.notifyAll();
+    }
+    waitForEnd();
+  }
+  
+  /**
+   * Blocks until the emulation thread has finished, either through
+   * endExecution() or by reaching the frame limit.
+   */
+  public void waitForEnd()
+  {
+    synchronized(this)
+    {
+      while(running)
       {
         try 
         {
           this.wait(); 
-        } catch (Exception ex) 
+        } catch (InterruptedException ex) 
         {
           ex.printStackTrace();
         }
@@ -238,261 +177,629 @@ public class CPUCore implements Runnable
   
   public void run()
   {
-    execute = true;
-    long start = Sys.getTime();
-    long delta = 0;
-    long loopCounter = 0;
-    float cycleTime = 0;
-    float thisCycle = 0;
+    frameMode = instructionsPerFrame > 0 || turbo;
+    frameCount = 0;
+    screenSteps = 0;
+    screenChanged = false;
+    sincePublish = 0;
+    synchronized(idleLock)
+    {
+      scriptPosition = 0;
+    }
+    if(turbo)
+      random.setSeed(randomSeed);
     
-    while(execute)
+    try 
+    {
+      if(frameMode)
+        runFrames();
+      else
+        runInstructions();
+    }
+    finally //even if the program crashed the emulator, nothing should wait for it forever
+    {
+      synchronized(this)
+      {
+        execute = false;
+        running = false;
+        this.notifyAll();
+      }
+    }
+  }
+  
+  /**
+   * Runs a fixed budget of instructions per 60 Hz frame, then ticks the
+   * timers and presents the screen once. Instructions owed by a block that
+   * overran the budget are taken out of the next frame. In turbo mode frames
+   * follow each other without any waiting, and since keys only change
+   * between frames the same ROM and inputs always give the same frames.
+   * A turbo run never parks waiting for a key: frames keep counting until
+   * the input script (or the keyboard) supplies one.
+   */
+  private void runFrames()
+  {
+    int budget = 0;
+    int budgetPerFrame = instructionsPerFrame > 0 ? instructionsPerFrame : DEFAULT_INSTRUCTIONS_PER_FRAME;
+    
+    scheduler.setPeriod(1000000000L/FRAME_RATE);
+    scheduler.reset();
+    
+    while(execute && (frameLimit == 0 || frameCount < frameLimit))
     {
-      loopCounter++;
-      start = Sys.getTime();
+      synchronized(idleLock)
+      {
+        applyInputScript();
+        System.arraycopy(pendingKeys, 0, keys, 0, keys.length);
+      }
       
       if(!paused)
       {
-        thisCycle = execute(memory.load(cpu.getProgramCounter()), //how much time the cycle really would have taken
-                            memory.load(cpu.getProgramCounter()+1));
-                                   
-        if(cpu.getDelayTimer() > 0)
-          cpu.setDelayTimer(cpu.getDelayTimer() - 1);
-        if(cpu.getSoundTimer() > 0)
-          cpu.setSoundTimer(cpu.getSoundTimer() - 1);
-        else if(cpu.getSoundTimer() != -50000)
-        { 
-          cpu.setSoundTimer(-50000);
-          stopLoop = true;
+        budget += budgetPerFrame;
+        idle = false;
+        while(budget > 0 && execute && !paused && !idle && !waitingForKey)
+        {
+          budget -= runNext(budget);
         }
+        if(budget > 0) //stopped early, the rest of the frame would only have spun
+          budget = 0;
         
-        cpu.setProgramCounter(cpu.getProgramCounter() + 2); //go to the next line
+        tickTimers();
+        frameCount++;
+        record(1000000000L/FRAME_RATE);
+        advanceScreen();
         
-        cycleTime += thisCycle;
+        if(waitingForKey)
+        {
+          if(turbo) //a scripted key arrives on a frame, so the frames have to keep coming
+            waitingForKey = false;
+          else
+          {
+            screen.update();
+            waitWhileIdle();
+          }
+        }
+      }
+      else
+      {
+        cpu.setSoundTimer(-50000);
+        audio.setTone(false);
+        screen.update(CYCLE_TIME*25);
+        screen.update(); //the paused frame, published from this thread only
+        waitWhileIdle();
       }
+      
+      screen.update();
+      if(!turbo)
+        scheduler.waitForFrame();
+    }
+  }
+  
+  /**
+   * Latches every scripted key change due by the current frame, as if it
+   * had come from the keyboard. Called with idleLock held.
+   */
+  private void applyInputScript()
+  {
+    while(scriptPosition < inputScript.size())
+    {
+      KeyChange change = inputScript.get(scriptPosition);
+      if(change.frame > frameCount)
+        break;
+      pendingKeys[change.key] = change.pressed ? 1 : 0;
+      scriptPosition++;
+    }
+  }
+  
+  private void runInstructions()
+  {
+    int sinceSync = 0;
+    scheduler.setPeriod(getIntervalPeriod());
+    scheduler.reset();
+    
+    while(execute)
+    {
+      int executed = 1;
+      
+      if(!paused)
+        executed = runNext(Math.max(1, SYNC_INTERVAL - sinceSync));
       else
       {
         cpu.setSoundTimer(-50000);
-        stopLoop = true;
+        audio.setTone(false);
+        screen.update(CYCLE_TIME*25);
+        screen.update(); //the paused frame, published from this thread only
+        waitWhileIdle();
       }
       
-      screen.update(thisCycle*25);
-      delta = Sys.getTime()-start; //amount of time that calculations actually took
+      if(waitingForKey)
+      {
+        advanceScreen();
+        publishScreen();
+        waitWhileIdle();
+      }
       
-      if(loopCounter % 15 == 0)
+      //wait out one period per interval's worth of instructions, so whole blocks and
+      //fast-forwarded idle loops take as long as they would have one by one
+      sinceSync += executed;
+      if(sinceSync >= SYNC_INTERVAL)
+        advanceScreen();
+      while(sinceSync >= SYNC_INTERVAL && execute && !paused)
       {
-        int pauseTime = (int)(pauseScale*cycleTime-delta);
-        if(pauseTime != 0)
-          Display.sync(pauseTime);
-        cycleTime = 0;
+        scheduler.setPeriod(getIntervalPeriod()); //the speed changes with the SChip mode
+        record(getIntervalPeriod());
+        sincePublish += getIntervalPeriod();
+        if(sincePublish >= 1000000000L/FRAME_RATE)
+          publishScreen();
+        scheduler.waitForFrame();
+        sinceSync -= SYNC_INTERVAL;
       }
-      else if(loopCounter % 3 == 0)
+      if(!execute || paused) //the rest of the debt is dropped, pacing starts over on resume
+        sinceSync = 0;
+    }
+    publishScreen();
+  }
+  
+  /**
+   * Parks the emulation thread while paused or waiting on a key press that
+   * nothing else could satisfy, until resumed, a key goes down or execution
+   * ends. Pacing starts over afterwards instead of trying to catch up.
+   */
+  private void waitWhileIdle()
+  {
+    synchronized(idleLock)
+    {
+      while(execute && (paused || waitingForKey && !isKeyPending()))
       {
         try 
         {
-          Thread.sleep(1);
-        } catch (Exception ex) 
+          idleLock.wait();
+        } catch (InterruptedException ex) 
         {
           ex.printStackTrace();
         }
       }
-      else
-        Thread.yield();
+      waitingForKey = false;
     }
-    synchronized(this)
+    scheduler.reset();
+  }
+  
+  private boolean isKeyPending()
+  {
+    for (int i = 0; i < pendingKeys.length; i++) 
     {
-      this.notify();
+      if(pendingKeys[i] == 1) 
+        return true;
     }
+    return false;
+  }
+  
+  /**
+   * Returns how long a sync interval of instructions should take, matching
+   * the rate the original Display.sync based pacing aimed for.
+   */
+  private long getIntervalPeriod()
+  {
+    return (long)(1000000000/(pauseScale*CYCLE_TIME*SYNC_INTERVAL));
   }
   
-  private float execute(int first, int second)
+  /**
+   * Runs the cached block at the program counter, through its generated
+   * class once it has one, or interprets a single instruction if there
+   * isn't a block. A precompiled program's class goes on from block to
+   * block by itself, starting no block once the budget is spent.
+   * @return the number of original instructions executed
+   */
+  private int runNext(int budget)
   {
-    int cycleCount = 1; //this would be set in each instruction, but it is not variable for this cpu
+    BasicBlock block = null;
+    if(useBlocks || blocks.isPrecompiled())
+      block = blocks.get(cpu.getProgramCounter());
     
-    int part1 = ((first & 0xF0) >>> 4);
-    int part2 = (first & 0x0F);
-    int part3 = ((second & 0xF0) >>> 4);
-    int part4 = (second & 0x0F);
+    if(block == null) //not compiled, fall back to the interpreter
+      return step(memory.fetch(cpu.getProgramCounter()));
     
-    switch(part1) 
+    CompiledBlock compiled = block.getCompiled();
+    if(compiled != null)
+      return compiled.run(budget);
+    
+    Instruction[] instructions = block.getInstructions();
+    int codeVersion = memory.getCodeVersion();
+    int executed = 0;
+    for (int i = 0; i < instructions.length; i++) 
     {
-      case 0x0:
+      executed += step(instructions[i]);
+      if(isInterrupted(codeVersion))
+        break;
+    }
+    return executed;
+  }
+  
+  /**
+   * Runs instructions on the calling thread, without pacing, frames or
+   * parking on a key wait, until at least count of them have run and the
+   * engine is between blocks. The random number generator starts from the
+   * seed, so that BlockCheck can run the same program through different
+   * engines and compare them instruction for instruction.
+   * @return the number of original instructions executed
+   */
+  long runFor(long count)
+  {
+    frameMode = false;
+    random.setSeed(randomSeed);
+    execute = true;
+    long executed = 0;
+    try 
+    {
+      while(executed < count)
       {
-        switch (part4 | part3 << 4) 
-        {
-          case 0xE0:
-            cls();
-          break;
-          case 0xEE:
-            rts();
-          break;
-          case 0xFB:
-            scright();
-          break;
-          case 0xFC:
-            scleft();
-          break;
-          case 0xFE:
-            low();
-          break;
-          case 0xFF:
-            high();
-          break;
-          default:
-          {
-            if(part3 == 0xC)
-              scdown(part4);
-            else if((part3 << 4 | part4) == 0xFD)
-            {
-              JOptionPane.showMessageDialog(screen, "Game Over");
-              reset();
-            }
-            else
-              System.out.println("Invalid OpCode: " + (first << 8 | second) + " called");
-          }
-          break;
-        }
+        executed += runNext((int)Math.min(count - executed, Integer.MAX_VALUE));
+        waitingForKey = false; //no key will come, so keep polling like a paced run would
       }
+    }
+    finally
+    {
+      execute = false;
+    }
+    return executed;
+  }
+  
+  /**
+   * Whether a block has to stop after its current instruction: execution
+   * was paused, ended or is idling, or memory changed under the rest of
+   * the block since it read the given code version.
+   */
+  boolean isInterrupted(int codeVersion)
+  {
+    return paused || !execute || idle || waitingForKey || memory.getCodeVersion() != codeVersion;
+  }
+  
+  int getCodeVersion()
+  {
+    return memory.getCodeVersion();
+  }
+  
+  /**
+   * Accounts for instructions a compiled block ran inline, as step() would
+   * have one by one, and moves the program counter past them.
+   */
+  void settle(int address, int steps)
+  {
+    if(!frameMode)
+    {
+      for (int i = 0; i < steps; i++) 
+      {
+        tickTimers();
+      }
+    }
+    screenSteps += steps;
+    cpu.setProgramCounter(address);
+  }
+  
+  void countFused(int operation)
+  {
+    fusionCounts[operation - Instruction.FIRST_FUSED]++;
+  }
+  
+  /**
+   * Executes one (possibly fused) instruction and advances the timers once
+   * for every original instruction it ran. The screen is caught up later,
+   * by advanceScreen().
+   * @return the number of original instructions executed
+   */
+  int step(Instruction instruction)
+  {
+    int cycleCount = execute(instruction);
+    
+    if(!frameMode)
+    {
+      for (int i = 0; i < cycleCount; i++) 
+      {
+        tickTimers();
+      }
+    }
+    screenSteps += cycleCount;
+    
+    cpu.setProgramCounter(cpu.getProgramCounter() + 2); //go to the next line
+    
+    return cycleCount;
+  }
+  
+  /**
+   * Advances the screen's fading pixels and colours by all the instructions
+   * run since the last call, in one step.
+   */
+  private void advanceScreen()
+  {
+    if(screenSteps > 0)
+    {
+      screen.update(CYCLE_TIME*25*screenSteps, screenSteps);
+      screenSteps = 0;
+    }
+  }
+  
+  /**
+   * Adds a span of emulated time to the recording, if there is one, with
+   * the beep as the sound timer has it at the end of that span.
+   */
+  private void record(long nanos)
+  {
+    if(recorder != null)
+    {
+      try 
+      {
+        recorder.write(nanos, audio.isTone());
+      } catch (IOException ex) 
+      {
+        ex.printStackTrace();
+        recorder = null;
+      }
+    }
+  }
+  
+  private void tickTimers()
+  {
+    if(cpu.getDelayTimer() > 0)
+      cpu.setDelayTimer(cpu.getDelayTimer() - 1);
+    if(cpu.getSoundTimer() > 0)
+      cpu.setSoundTimer(cpu.getSoundTimer() - 1);
+    else if(cpu.getSoundTimer() != -50000)
+    { 
+      cpu.setSoundTimer(-50000);
+      audio.setTone(false);
+    }
+  }
+  
+  /**
+   * Notes a change to the screen, unless frames are being batched and the
+   * screen is presented once per frame anyway. Outside frame mode the change
+   * is published with the next 60 Hz tick, not on every draw.
+   */
+  private void refresh()
+  {
+    if(!frameMode)
+      screenChanged = true;
+  }
+  
+  /**
+   * Publishes the screen if it has changed since it last was, and starts
+   * the next 60 Hz tick.
+   */
+  private void publishScreen()
+  {
+    if(screenChanged)
+    {
+      screen.update();
+      screenChanged = false;
+    }
+    sincePublish = 0;
+  }
+  
+  private int execute(Instruction instruction)
+  {
+    int cycleCount = 1; //how many of the original instructions actually ran
+    
+    switch(instruction.getOperation()) 
+    {
+      case Instruction.CLS:
+        cls();
       break;
-      case 0x1:
-        jmp((part2 << 8 | part3 << 4 | part4));
-      break;
-      case 0x2:
-        jsr((part2 << 8 | part3 << 4 | part4));
+      case Instruction.RTS:
+        rts();
       break;
-      case 0x3:
-        skeq(part2, (part3 << 4 | part4));
+      case Instruction.SCRIGHT:
+        scright();
       break;
-      case 0x4:
-        skne(part2, (part3 << 4 | part4));
+      case Instruction.SCLEFT:
+        scleft();
       break;
-      case 0x5:
-        skeqReg(part2, part3);
+      case Instruction.LOW:
+        low();
       break;
-      case 0x6:
-        mov(part2, (part3 << 4 | part4));
+      case Instruction.HIGH:
+        high();
       break;
-      case 0x7:
-        add(part2, (part3 << 4 | part4));
+      case Instruction.SCDOWN:
+        scdown(instruction.getN());
       break;
-      case 0x8:
+      case Instruction.EXIT:
       {
-        switch (part4) 
-        {
-          case 0x0:    
-            movReg(part2, part3);
-          break;
-          case 0x1:    
-            or(part2, part3);
-          break;
-          case 0x2:    
-            and(part2, part3);
-          break;
-          case 0x3:    
-            xor(part2, part3);
-          break;
-          case 0x4:    
-            addReg(part2, part3);
-          break;
-          case 0x5:    
-            sub(part2, part3);
-          break;
-          case 0x6:    
-            shr(part2);
-          break;
-          case 0x7:    
-            rsb(part2, part3);
-          break;
-          case 0xE:    
-            shl(part2);
-          break;
-          default:
-            System.out.println("Invalid OpCode: " + (first << 8 | second) + " called");
-          break;
-        }
+        JOptionPane.showMessageDialog(screen.getCanvas(), "Game Over");
+        reset();
       }
       break;
-      case 0x9:    
-        skneReg(part2, part3);
+      case Instruction.JMP:
+        jmp(instruction.getNNN());
       break;
-      case 0xA:    
-        mvi((part2 << 8 | part3 << 4 | part4));
+      case Instruction.JSR:
+        jsr(instruction.getNNN());
       break;
-      case 0xB:    
-        jmi((part2 << 8 | part3 << 4 | part4));
+      case Instruction.SKEQ:
+        skeq(instruction.getX(), instruction.getNN());
       break;
-      case 0xC:    
-        rand(part2, (part3 << 4 | part4));
+      case Instruction.SKNE:
+        skne(instruction.getX(), instruction.getNN());
       break;
-      case 0xD:    
-      {
-        if(part4 != 0)
-          sprite(part2, part3, part4);
-        else
-          xsprite(part2, part3);
-      }
+      case Instruction.SKEQ_REG:
+        skeqReg(instruction.getX(), instruction.getY());
       break;
-      case 0xE:    
-      {
-        switch (part4 | part3 << 4) 
-        {
-          case 0x9e:
-            skpr(part2);
-          break;
-          case 0xA1:
-            skup(part2);
-          break;
-          default:
-            System.out.println("Invalid OpCode: " + (first << 8 | second) + " called");
-          break;
-        }
-      }
+      case Instruction.MOV:
+        mov(instruction.getX(), instruction.getNN());
       break;
-      case 0xF:
-      {
-        switch (part3 << 4 | part4) 
-        {
-          case 0x07:
-            gdelay(part2);
-          break;
-          case 0x0A:
-            key(part2);
-          break;
-          case 0x15:
-            sdelay(part2);
-          break;
-          case 0x18:
-            ssound(part2);
-          break;
-          case 0x1E:
-            adi(part2);
-          break;
-          case 0x29:
-            font(part2);
-          break;
-          case 0x30:
-            xfont(part2);
-          break;
-          case 0x33:
-            bcd(part2);
-          break;
-          case 0x55:
-            str(part2);
-          break;
-          case 0x65:
-            ldr(part2);
-          break;
-          default:
-            System.out.println("Invalid OpCode: " + (first << 8 | second) + " called");
-          break;
-        }
-      }
+      case Instruction.ADD:
+        add(instruction.getX(), instruction.getNN());
+      break;
+      case Instruction.MOV_REG:
+        movReg(instruction.getX(), instruction.getY());
+      break;
+      case Instruction.OR:
+        or(instruction.getX(), instruction.getY());
+      break;
+      case Instruction.AND:
+        and(instruction.getX(), instruction.getY());
+      break;
+      case Instruction.XOR:
+        xor(instruction.getX(), instruction.getY());
+      break;
+      case Instruction.ADD_REG:
+        addReg(instruction.getX(), instruction.getY());
+      break;
+      case Instruction.SUB:
+        sub(instruction.getX(), instruction.getY());
+      break;
+      case Instruction.SHR:
+        shr(instruction.getX());
+      break;
+      case Instruction.RSB:
+        rsb(instruction.getX(), instruction.getY());
+      break;
+      case Instruction.SHL:
+        shl(instruction.getX());
+      break;
+      case Instruction.SKNE_REG:
+        skneReg(instruction.getX(), instruction.getY());
+      break;
+      case Instruction.MVI:
+        mvi(instruction.getNNN());
+      break;
+      case Instruction.JMI:
+        jmi(instruction.getNNN());
+      break;
+      case Instruction.RAND:
+        rand(instruction.getX(), instruction.getNN());
+      break;
+      case Instruction.SPRITE:
+        sprite(instruction.getX(), instruction.getY(), instruction.getN());
+      break;
+      case Instruction.XSPRITE:
+        xsprite(instruction.getX(), instruction.getY());
+      break;
+      case Instruction.SKPR:
+        skpr(instruction.getX());
+      break;
+      case Instruction.SKUP:
+        skup(instruction.getX());
+      break;
+      case Instruction.GDELAY:
+        gdelay(instruction.getX());
+      break;
+      case Instruction.KEY:
+        cycleCount = key(instruction.getX());
+      break;
+      case Instruction.SDELAY:
+        sdelay(instruction.getX());
+      break;
+      case Instruction.SSOUND:
+        ssound(instruction.getX());
+      break;
+      case Instruction.ADI:
+        adi(instruction.getX());
+      break;
+      case Instruction.FONT:
+        font(instruction.getX());
+      break;
+      case Instruction.XFONT:
+        xfont(instruction.getX());
+      break;
+      case Instruction.BCD:
+        bcd(instruction.getX());
+      break;
+      case Instruction.STR:
+        str(instruction.getX());
+      break;
+      case Instruction.LDR:
+        ldr(instruction.getX());
+      break;
+      case Instruction.SKEQ_JMP:
+        cycleCount = skeqJmp(instruction.getX(), instruction.getNN(), instruction.getPart(1).getNNN());
+      break;
+      case Instruction.SKNE_JMP:
+        cycleCount = skneJmp(instruction.getX(), instruction.getNN(), instruction.getPart(1).getNNN());
+      break;
+      case Instruction.MVI_SPRITE:
+        cycleCount = mviSprite(instruction.getNNN(), instruction.getPart(1));
+      break;
+      case Instruction.MOV_MOV:
+        cycleCount = movMov(instruction.getX(), instruction.getNN(), instruction.getPart(1));
+      break;
+      case Instruction.TIMER_POLL:
+        cycleCount = timerPoll(instruction.getX(), instruction.getPart(2).getNNN());
       break;
       default:
-        System.out.println("Invalid OpCode: " + (first << 8 | second) + " called");
+        System.out.println("Invalid OpCode: " + instruction.getOpcode() + " called");
       break;
     }
     
-    return CYCLE_TIME * cycleCount;
+    if(instruction.isFused())
+      countFused(instruction.getOperation());
+    
+    return cycleCount;
+  }
+  
+  private int skeqJmp(int r1, int constant, int address)
+  {
+    if(cpu.getRegisterValue(r1) == constant)
+    {
+      cpu.setProgramCounter(cpu.getProgramCounter() + 2); //skip the jump
+      return 1;
+    }
+    jmp(address);
+    return 2;
+  }
+  
+  private int skneJmp(int r1, int constant, int address)
+  {
+    if(cpu.getRegisterValue(r1) != constant)
+    {
+      cpu.setProgramCounter(cpu.getProgramCounter() + 2); //skip the jump
+      return 1;
+    }
+    jmp(address);
+    return 2;
+  }
+  
+  private int mviSprite(int address, Instruction sprite)
+  {
+    mvi(address);
+    cpu.setProgramCounter(cpu.getProgramCounter() + 2);
+    if(sprite.getOperation() == Instruction.SPRITE)
+      sprite(sprite.getX(), sprite.getY(), sprite.getN());
+    else
+      xsprite(sprite.getX(), sprite.getY());
+    return 2;
+  }
+  
+  private int movMov(int r1, int constant, Instruction mov)
+  {
+    mov(r1, constant);
+    mov(mov.getX(), mov.getNN());
+    cpu.setProgramCounter(cpu.getProgramCounter() + 2);
+    return 2;
+  }
+  
+  private int timerPoll(int r1, int address)
+  {
+    int loopStart = cpu.getProgramCounter();
+    gdelay(r1);
+    if(cpu.getRegisterValue(r1) == 0)
+    {
+      cpu.setProgramCounter(cpu.getProgramCounter() + 4); //past the test, skipping the jump
+      return 2;
+    }
+    jmp(address);
+    if(address != loopStart)
+      return 3;
+    
+    if(frameMode) //the timer won't change before the next frame
+    {
+      idle = true;
+      return 3;
+    }
+    
+    //the loop only waits on itself, so run every pass until the timer expires at once:
+    //each pass reads the timer and then lets it tick three times
+    int passes = (cpu.getDelayTimer()+2)/3;
+    cpu.setRegister(r1, cpu.getDelayTimer() - 3*(passes-1));
+    return 3*passes;
   }
   
   private void scdown(int lines)
@@ -500,7 +807,7 @@ public class CPUCore implements Runnable
     if(debug)
       System.out.println("Scroll down: " + lines + " lines.");
     screen.scrollDown(lines);
-    screen.update();
+    refresh();
   }
   
   private void cls()
@@ -508,7 +815,7 @@ public class CPUCore implements Runnable
     if(debug)
       System.out.println("clearing screen");
     screen.clear();
-    screen.update();
+    refresh();
   }
   
   private void rts()
@@ -523,7 +830,7 @@ public class CPUCore implements Runnable
     if(debug)
       System.out.println("Scroll right");
     screen.scrollRight();
-    screen.update();
+    refresh();
   }
   
   private void scleft()
@@ -531,21 +838,28 @@ public class CPUCore implements Runnable
     if(debug)
       System.out.println("Scroll left");
     screen.scrollLeft();
-    screen.update();
+    refresh();
   }
   
   private void low()
   {
     System.out.println("Disable SChip");
-    screen.setUseSChip(false);
-    pauseScale = 150;
+    setUseSChip(false);
   }
   
   private void high()
   {
     System.out.println("Enable SChip");
-    screen.setUseSChip(true);
-    pauseScale = 250;
+    setUseSChip(true);
+  }
+  
+  /**
+   * Switches the screen resolution and the matching execution speed.
+   */
+  public void setUseSChip(boolean schip)
+  {
+    screen.setUseSChip(schip);
+    pauseScale = schip ? 250 : 150;
   }
   
   private void jmp(int address)
@@ -717,7 +1031,7 @@ public class CPUCore implements Runnable
   
   private void rand(int r1, int constant)
   {
-    int rand = (int)(Math.random()*255) & constant;
+    int rand = (int)(random.nextDouble()*255) & constant;
     if(debug)
       System.out.println("setting r" + Integer.toHexString(r1) + " to random value: " + Integer.toHexString(rand) + " max rand: " + constant);
     cpu.setRegister(r1, rand);
@@ -733,32 +1047,29 @@ public class CPUCore implements Runnable
   
   private void drawSprite(int r1, int r2, int height, int width)
   {
-    int[] pixels = new int[width*height];
-    int rowIndex = 0;
+    int x = cpu.getRegisterValue(r1);
+    int y = cpu.getRegisterValue(r2);
+    int address = cpu.getAddressRegister();
+    boolean collision = false;
     
-    for (int i = 0; i < pixels.length/width; i++) 
+    if(useSpriteCache && address + height*width/8 <= memory.getSize())
     {
-      int row = memory.load(cpu.getAddressRegister() + rowIndex++);
-      if(width > 8)
-      {
-        int row2 = memory.load(cpu.getAddressRegister() + rowIndex++);
-        row = row2 | row << 8;
-      }
-      
-      int pixelIndex = i*width;
-      int mask = (int)Math.pow(2, width);
-      int count = width;
-      
-      for (int j = 0; j < width; j++)
+      long[] masks = spriteCache.get(address, height, width, x, screen.getPixelsAcross());
+      collision = screen.drawSpriteRows(y, masks, height);
+    }
+    else
+    {
+      for (int i = 0; i < height; i++) 
       {
-        mask /= 2;
-        count--;
-        pixels[pixelIndex + j] = (row & mask) >>> count;
+        int row = memory.load(address++);
+        if(width > 8)
+          row = row << 8 | memory.load(address++);
+        
+        if(screen.drawSpriteRow(x, y + i, row, width))
+          collision = true;
       }
     }
     
-    boolean collision = screen.drawSprite(cpu.getRegisterValue(r1), cpu.getRegisterValue(r2),
-                                          width, pixels);
     if(collision)
     {
       if(debug)
@@ -768,7 +1079,7 @@ public class CPUCore implements Runnable
     else
       cpu.setRegister(CPU.VF, 0x0);
       
-    screen.update();
+    refresh();
   }
   
   private void xsprite(int r1, int r2)
@@ -801,14 +1112,30 @@ public class CPUCore implements Runnable
     cpu.setRegister(r1, cpu.getDelayTimer());
   }
   
-  private void key(int r1)
+  private int key(int r1)
   {
     if(debug)
       System.out.println("waiting for key press");
     if(getPressedKey() == -1)
+    {
       cpu.setProgramCounter(cpu.getProgramCounter()-2);
+      if(cpu.getDelayTimer() == 0 && cpu.getSoundTimer() <= 0 && !screen.isFading())
+      {
+        waitingForKey = true; //nothing at all can change until a key goes down
+        return 1;
+      }
+      if(frameMode)
+      {
+        idle = true; //nothing else happens until the next frame
+        return 1;
+      }
+      return SYNC_INTERVAL; //nothing else happens while waiting, so spin a whole interval at once
+    }
     else
+    {
       cpu.setRegister(r1, CHIP8.intToHex(getPressedKey()));
+      return 1;
+    }
   }
   
   private void sdelay(int r1)
@@ -823,8 +1150,7 @@ public class CPUCore implements Runnable
     if(debug)
       System.out.println("setting sound timer to: " + Integer.toHexString(cpu.getRegisterValue(r1)));
     cpu.setSoundTimer(cpu.getRegisterValue(r1));
-    if(!looping || stopLoop)
-      loop();
+    audio.setTone(cpu.getSoundTimer() > 0);
   }
   
   private void adi(int r1)
@@ -899,18 +1225,252 @@ public class CPUCore implements Runnable
 
   public void setPaused(boolean paused)
   {
-    this.paused = paused;
+    synchronized(idleLock)
+    {
+      this.paused = paused;
+      idleLock.notifyAll();
+    }
     screen.setPaused(paused);
   }
 
+  /**
+   * Compiles every block reachable from the program start into one class,
+   * before the program runs. Until the next reset, addresses the static
+   * pass didn't reach, and blocks that get overwritten, are interpreted.
+   */
+  public void compileProgram()
+  {
+    blocks.precompile(Memory.PROGRAM_START);
+  }
+
+  /**
+   * Returns how often the given superinstruction has run since the last reset.
+   */
+  public int getFusionCount(int operation)
+  {
+    return fusionCounts[operation - Instruction.FIRST_FUSED];
+  }
+  
+  private int getFusionTotal()
+  {
+    int total = 0;
+    for (int i = 0; i < fusionCounts.length; i++) 
+    {
+      total += fusionCounts[i];
+    }
+    return total;
+  }
+  
+  public String getFusionReport()
+  {
+    StringBuffer report = new StringBuffer("Superinstructions executed:");
+    for (int i = 0; i < fusionCounts.length; i++) 
+    {
+      report.append("\n  " + Instruction.getFusedName(Instruction.FIRST_FUSED + i) + ": " + fusionCounts[i]);
+    }
+    return report.toString();
+  }
+
+  public SpriteCache getSpriteCache()
+  {
+    return spriteCache;
+  }
+
+  public boolean isUseSpriteCache()
+  {
+    return useSpriteCache;
+  }
+
+  public void setUseSpriteCache(boolean useSpriteCache)
+  {
+    this.useSpriteCache = useSpriteCache;
+  }
+
+  public int getInstructionsPerFrame()
+  {
+    return instructionsPerFrame;
+  }
+
+  /**
+   * Sets how many instructions run per 60 Hz frame, which sets the emulated
+   * speed. Zero keeps the original loop that paces every instruction. Takes
+   * effect the next time execution begins.
+   */
+  public void setInstructionsPerFrame(int instructionsPerFrame)
+  {
+    this.instructionsPerFrame = instructionsPerFrame;
+  }
+
+  public boolean isTurbo()
+  {
+    return turbo;
+  }
+
+  /**
+   * Turbo mode runs frames back to back as fast as possible on the emulated
+   * clock, with a fixed random seed, for deterministic headless runs. Takes
+   * effect the next time execution begins.
+   */
+  public void setTurbo(boolean turbo)
+  {
+    this.turbo = turbo;
+  }
+
+  public long getRandomSeed()
+  {
+    return randomSeed;
+  }
+
+  /**
+   * Sets the seed the random number generator starts from in turbo mode.
+   */
+  public void setRandomSeed(long randomSeed)
+  {
+    this.randomSeed = randomSeed;
+  }
+
+  /**
+   * Returns the emulated time in frames since execution began, when running
+   * in frame or turbo mode.
+   */
+  public long getFrameCount()
+  {
+    return frameCount;
+  }
+  
+  public long getEmulatedTime() //milliseconds
+  {
+    return frameCount*1000/FRAME_RATE;
+  }
+
+  public long getFrameLimit()
+  {
+    return frameLimit;
+  }
+
+  /**
+   * Makes frame or turbo mode stop by itself after the given number of
+   * frames; waitForEnd() returns once it has. Zero runs until
+   * endExecution(). Takes effect the next time execution begins.
+   */
+  public void setFrameLimit(long frameLimit)
+  {
+    this.frameLimit = frameLimit;
+  }
+
+  /**
+   * Scripts a key (0 to F) to go down at the start of the given frame, in
+   * frame or turbo mode. The script plays again from the start every time
+   * execution begins, so a turbo run with a script always sees its keys on
+   * the same frames. Changes scripted for a frame that has already run are
+   * applied on the next one.
+   */
+  public void pressKeyAtFrame(long frame, int key)
+  {
+    scriptKey(frame, key, true);
+  }
+
+  /**
+   * Scripts a key (0 to F) to come back up at the start of the given frame;
+   * see pressKeyAtFrame().
+   */
+  public void releaseKeyAtFrame(long frame, int key)
+  {
+    scriptKey(frame, key, false);
+  }
+
+  private void scriptKey(long frame, int key, boolean pressed)
+  {
+    synchronized(idleLock)
+    {
+      int index = inputScript.size();
+      while(index > scriptPosition && inputScript.get(index-1).frame > frame)
+      {
+        index--;
+      }
+      inputScript.add(index, new KeyChange(frame, key, pressed));
+    }
+  }
+
+  public void clearInputScript()
+  {
+    synchronized(idleLock)
+    {
+      inputScript.clear();
+      scriptPosition = 0;
+    }
+  }
+
+  /**
+   * One entry of the input script.
+   */
+  private static class KeyChange
+  {
+    private long frame;
+    private int key;
+    private boolean pressed;
+
+    public KeyChange(long frame, int key, boolean pressed)
+    {
+      this.frame = frame;
+      this.key = key;
+      this.pressed = pressed;
+    }
+  }
+
+  /**
+   * Returns the scheduler pacing real-time execution, whose histogram shows
+   * how closely frames (or instruction intervals) start on time.
+   */
+  public FrameScheduler getScheduler()
+  {
+    return scheduler;
+  }
+
+  public boolean isUseBlocks()
+  {
+    return useBlocks;
+  }
+
+  /**
+   * Switches between interpreting one fetched instruction at a time and
+   * running whole cached basic blocks per loop iteration. Blocks that keep
+   * being run are compiled to JVM bytecode by the BlockCompiler; execute()
+   * stays the reference for what every instruction does.
+   */
+  public void setUseBlocks(boolean useBlocks)
+  {
+    this.useBlocks = useBlocks;
+  }
+
   public boolean isSoundEnabled()
   {
-    return soundEnabled;
+    return audio.isEnabled();
   }
 
   public void setSoundEnabled(boolean soundEnabled)
   {
-    this.soundEnabled = soundEnabled;
+    audio.setEnabled(soundEnabled);
+  }
+
+  public AudioEngine getAudio()
+  {
+    return audio;
+  }
+
+  public WavRecorder getRecorder()
+  {
+    return recorder;
+  }
+
+  /**
+   * Records the beep into the given recorder from now on, in step with
+   * emulated time; null stops recording. Closing the recorder is up to
+   * the caller.
+   */
+  public void setRecorder(WavRecorder recorder)
+  {
+    this.recorder = recorder;
   }
 
   public Screen getScreen()
@@ -0,0 +1,83 @@
+package com.cyntaks.chip8;
+
+/**
+ * Base of the classes BlockCompiler generates, one per basic block (or of
+ * CompiledProgram, for a whole precompiled program). The
+ * generated run() works on the register file directly and calls back into
+ * CPUCore, through the methods here, for anything else. Generated classes
+ * live in their own class loader, so what they use has to be protected or
+ * public.
+ */
+public abstract class CompiledBlock
+{
+  protected final int[] v; //the CPU's data registers
+  protected final CPU cpu;
+  private CPUCore core;
+  private Instruction[] instructions;
+
+  protected CompiledBlock(CPUCore core, CPU cpu, Instruction[] instructions)
+  {
+    this.core = core;
+    this.cpu = cpu;
+    this.instructions = instructions;
+    v = cpu.getRegisters();
+  }
+
+  /**
+   * Runs the block from its first instruction, stopping early wherever the
+   * interpreter would have.
+   * @return the number of original instructions executed
+   */
+  public abstract int run();
+
+  /**
+   * Runs from the program counter, for as long as the class has code for
+   * where it goes and the budget isn't spent. A single block has nothing
+   * to go on to, so it just runs.
+   * @return the number of original instructions executed
+   */
+  public int run(int budget)
+  {
+    return run();
+  }
+
+  /**
+   * Tells the class that the block at the given address was overwritten and
+   * must not be run again.
+   */
+  void drop(int address)
+  {
+  }
+
+  protected final int codeVersion()
+  {
+    return core.getCodeVersion();
+  }
+
+  /**
+   * Accounts for the given number of instructions run inline, leaving the
+   * program counter at the address after them.
+   */
+  protected final void settle(int address, int steps)
+  {
+    core.settle(address, steps);
+  }
+
+  /**
+   * Interprets the block's i'th instruction.
+   */
+  protected final int step(int i)
+  {
+    return core.step(instructions[i]);
+  }
+
+  protected final boolean interrupted(int codeVersion)
+  {
+    return core.isInterrupted(codeVersion);
+  }
+
+  protected final void fused(int operation)
+  {
+    core.countFused(operation);
+  }
+}
@@ -0,0 +1,96 @@
+package com.cyntaks.chip8;
+
+/**
+ * Base of the class BlockCompiler generates for a whole precompiled
+ * program. The blocks are split into regions of consecutive addresses, each
+ * a method of the generated class, in which one block jumps straight to the
+ * next wherever the next is known statically. Only returns, indirect jumps
+ * and other targets the code can't tell switch on the program counter, and
+ * only going from one region to another comes back out here.
+ *
+ * A region is kept under HotSpot's 8000 byte limit on the methods it will
+ * compile (HugeMethodLimit), since a whole ROM in one method would be
+ * left interpreted.
+ */
+public abstract class CompiledProgram extends CompiledBlock
+{
+  protected int budget; //instructions the current run() may start blocks within
+  protected boolean crossed; //set by a region handing over to another one
+  protected boolean[] live; //by block, cleared once the block is overwritten
+  private int[] regions; //region of the block starting at each address, or -1
+  private int[] indices; //block starting at each address
+
+  protected CompiledProgram(CPUCore core, CPU cpu, Instruction[] instructions)
+  {
+    super(core, cpu, instructions);
+  }
+
+  /**
+   * Tells the class where its blocks start and which region each is in, in
+   * the order they were compiled.
+   */
+  void setLayout(int[] starts, int[] blockRegions)
+  {
+    int size = 0;
+    for (int i = 0; i < starts.length; i++)
+    {
+      size = Math.max(size, starts[i]+1);
+    }
+    regions = new int[size];
+    indices = new int[size];
+    for (int i = 0; i < size; i++)
+    {
+      regions[i] = -1;
+    }
+    for (int i = 0; i < starts.length; i++)
+    {
+      regions[starts[i]] = blockRegions[i];
+      indices[starts[i]] = i;
+    }
+    live = new boolean[starts.length];
+    for (int i = 0; i < live.length; i++)
+    {
+      live[i] = true;
+    }
+  }
+
+  /**
+   * Runs the block at the program counter, and nothing after it.
+   */
+  public int run()
+  {
+    return run(1);
+  }
+
+  /**
+   * Runs region after region until one stops for the budget, an interrupt,
+   * or an address without a live block, where the caller takes over.
+   */
+  public final int run(int budget)
+  {
+    this.budget = budget;
+    int codeVersion = codeVersion();
+    int executed = 0;
+    do
+    {
+      crossed = false;
+      int address = cpu.getProgramCounter();
+      if(address >= regions.length || regions[address] == -1)
+        break;
+      executed = runRegion(regions[address], codeVersion, executed);
+    } while(crossed);
+    return executed;
+  }
+
+  /**
+   * Runs the given region from the program counter.
+   * @param executed the number of instructions run so far, counted on
+   * @return the number of instructions run so far
+   */
+  protected abstract int runRegion(int region, int codeVersion, int executed);
+
+  void drop(int address)
+  {
+    live[indices[address]] = false;
+  }
+}
@@ -0,0 +1,104 @@
+package com.cyntaks.chip8;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Passes finished frames from the emulation thread to the paint thread
+ * without locking. There are three frames: the writer fills the back one
+ * and swaps it with the ready one, and the reader swaps the ready one for
+ * the one it is showing whenever a newer frame has been published. Neither
+ * thread ever waits on the other; frames the reader didn't get to in time
+ * are simply replaced.
+ */
+public class FrameHandoff 
+{
+  private static final int INDEX_MASK = 3;
+  private static final int NEW_FRAME = 4;
+  
+  private Frame[] frames;
+  private AtomicInteger ready; //index of the ready frame, plus NEW_FRAME if it hasn't been taken yet
+  private int back; //only touched by the writer
+  private int front; //only touched by the reader
+  
+  public FrameHandoff(int width, int height, int words)
+  {
+    frames = new Frame[3];
+    for (int i = 0; i < frames.length; i++) 
+    {
+      frames[i] = new Frame(width, height, words);
+    }
+    back = 0;
+    ready = new AtomicInteger(1);
+    front = 2;
+  }
+  
+  /**
+   * Returns the frame the writer may fill before calling publish().
+   */
+  public Frame getBackFrame()
+  {
+    return frames[back];
+  }
+  
+  public void publish()
+  {
+    back = ready.getAndSet(back | NEW_FRAME) & INDEX_MASK;
+  }
+  
+  /**
+   * Returns the newest published frame, or the one returned last time if
+   * nothing has been published since.
+   */
+  public Frame acquire()
+  {
+    if((ready.get() & NEW_FRAME) != 0)
+      front = ready.getAndSet(front) & INDEX_MASK;
+    return frames[front];
+  }
+  
+  /**
+   * A copy of everything a canvas needs to draw the screen.
+   */
+  public static class Frame
+  {
+    private int width;
+    private int height;
+    private long[] pixels;
+    private int[] timers;
+    private float[] columnColors; //red, green and blue of each column
+    
+    private Frame(int width, int height, int words)
+    {
+      this.width = width;
+      this.height = height;
+      pixels = new long[words];
+      timers = new int[words*64];
+      columnColors = new float[width*3];
+    }
+
+    public int getWidth()
+    {
+      return width;
+    }
+
+    public int getHeight()
+    {
+      return height;
+    }
+
+    public long[] getPixels()
+    {
+      return pixels;
+    }
+
+    public int[] getTimers()
+    {
+      return timers;
+    }
+
+    public float[] getColumnColors()
+    {
+      return columnColors;
+    }
+  }
+}
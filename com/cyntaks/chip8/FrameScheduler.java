@@ -0,0 +1,106 @@
+package com.cyntaks.chip8;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces a loop to a fixed period using absolute deadlines, so that lateness
+ * in one frame is made up in the following ones instead of accumulating.
+ * The thread is parked rather than spun while waiting. How late each frame
+ * actually starts is recorded in a LatencyHistogram, which other threads
+ * may read.
+ */
+public class FrameScheduler 
+{
+  //frame-start error histogram bucket upper limits, in microseconds
+  private static final long[] BUCKET_LIMITS = {100, 250, 500, 1000, 2000, 4000, 8000, 16000};
+  
+  //after falling this many periods behind, give up catching up and start over from now
+  private static final int MAX_LAG = 4;
+  
+  private long period; //nanoseconds
+  private long deadline;
+  
+  private LatencyHistogram histogram;
+  private AtomicLong resyncs;
+  
+  public FrameScheduler(long period)
+  {
+    this.period = period;
+    histogram = new LatencyHistogram(BUCKET_LIMITS);
+    resyncs = new AtomicLong();
+    reset();
+  }
+  
+  /**
+   * Starts counting periods from now.
+   */
+  public void reset()
+  {
+    deadline = System.nanoTime() + period;
+  }
+  
+  /**
+   * Parks the calling thread until the start of the next period and records
+   * how far past its deadline it woke up.
+   */
+  public void waitForFrame()
+  {
+    long now = System.nanoTime();
+    while(now < deadline)
+    {
+      LockSupport.parkNanos(deadline - now);
+      now = System.nanoTime();
+    }
+    
+    histogram.record(now - deadline);
+    
+    deadline += period;
+    if(now - deadline > MAX_LAG*period)
+    {
+      deadline = now + period;
+      resyncs.incrementAndGet();
+    }
+  }
+  
+  public void clearStatistics()
+  {
+    histogram.clear();
+    resyncs.set(0);
+  }
+
+  public long getPeriod()
+  {
+    return period;
+  }
+
+  /**
+   * Changes the period starting with the next deadline.
+   */
+  public void setPeriod(long period)
+  {
+    if(period != this.period)
+    {
+      deadline += period - this.period;
+      this.period = period;
+    }
+  }
+  
+  /**
+   * Returns how late each frame started.
+   */
+  public LatencyHistogram getHistogram()
+  {
+    return histogram;
+  }
+
+  public long getResyncs()
+  {
+    return resyncs.get();
+  }
+  
+  public String getReport()
+  {
+    return histogram.getReport("Frame start error", "frames", resyncs.get() + " resyncs");
+  }
+}
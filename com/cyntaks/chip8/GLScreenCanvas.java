@@ -0,0 +1,273 @@
+package com.cyntaks.chip8;
+
+import com.cyntaks.chip8.utils.Texture;
+import com.cyntaks.chip8.utils.TextureLoader;
+import java.awt.Component;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.ComponentListener;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.LWJGLException;
+import org.lwjgl.opengl.AWTGLCanvas;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.glu.GLU;
+
+/**
+ * Shows a Screen through OpenGL, drawing every lit pixel as a textured glow
+ * quad. This is the only class besides the texture utilities that needs
+ * LWJGL.
+ */
+public class GLScreenCanvas extends AWTGLCanvas
+{
+  private static final long serialVersionUID = 1L;
+  private static final long LEFT_PIXEL = 0x8000000000000000L;
+  private static final int MAX_PIXELS = 128*64;
+  private static final int VERTEX_SIZE = 8; //floats per vertex: position, texture coordinates, colour
+
+  private Screen screen;
+  private float[] quadData = new float[(MAX_PIXELS+128)*4*VERTEX_SIZE]; //room for every pixel of the largest screen
+  private FloatBuffer quads;
+
+  private Texture pixel;
+  private Texture pixel2;
+  private Texture pixel3;
+  private Texture pausedTexture;
+
+  private boolean loaded; //whether the GL context is set up and the textures are loaded
+  private volatile boolean resized; //the viewport needs to follow the canvas size
+
+  public GLScreenCanvas(Screen screen) throws LWJGLException
+  {
+    this.screen = screen;
+
+    ComponentListener listener = new ComponentAdapter(){
+      public void componentResized(ComponentEvent e)
+      {
+        resized = true;
+      }
+    };
+
+    this.addComponentListener(listener);
+    setSize(64*12, 32*12);
+  }
+
+  /**
+   * Creates a GL canvas for the screen. Declared with plain types so that
+   * callers don't link against LWJGL: if it is missing, this call fails
+   * with a LinkageError the caller can catch.
+   */
+  public static Component create(Screen screen) throws Exception
+  {
+    return new GLScreenCanvas(screen);
+  }
+
+  private void loadImages()
+  {
+    try
+    {
+      pixel = TextureLoader.getTexture("images/pixel.png");
+      pixel2 = TextureLoader.getTexture("images/pixel2.png");
+      pixel3 = TextureLoader.getTexture("images/pixel3.png");
+      pausedTexture = TextureLoader.getTexture("images/paused.png");
+    } catch (IOException ex)
+    {
+      ex.printStackTrace();
+    }
+  }
+
+  public void paintGL()
+  {
+    FrameHandoff.Frame frame = screen.acquireFrame();
+    long[] renderData = frame.getPixels();
+    int[] timers = frame.getTimers();
+    int pixelsAcross = frame.getWidth();
+    int pixelsHigh = frame.getHeight();
+
+    if(!loaded)
+    {
+      try
+      {
+        makeCurrent();
+        setVSyncEnabled(true);
+      } catch (LWJGLException ex)
+      {
+        ex.printStackTrace();
+      }
+      loadImages();
+
+      GL11.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
+
+      loaded = true;
+      resized = true;
+    }
+
+    //the context and textures outlive resizes, only the viewport changes
+    if(resized)
+    {
+      resized = false;
+      GL11.glViewport(0, 0, getWidth(), getHeight());
+    }
+
+    float scale = Screen.getScale(pixelsAcross);
+    GL11.glMatrixMode(GL11.GL_PROJECTION);
+      GL11.glLoadIdentity();
+        GLU.gluOrtho2D(0, pixelsAcross*scale, pixelsHigh*scale, 0);
+    GL11.glMatrixMode(GL11.GL_MODELVIEW);
+    GL11.glLoadIdentity();
+
+    GL11.glClear(GL11.GL_COLOR_BUFFER_BIT | GL11.GL_DEPTH_BUFFER_BIT);
+
+    boolean useColorFading = screen.isUseColorFading();
+    GL11.glEnable(GL11.GL_BLEND);
+    GL11.glBlendFunc(GL11.GL_SRC_ALPHA, GL11.GL_ONE);
+    GL11.glEnable(GL11.GL_TEXTURE_2D);
+    GL11.glColor4f(1, 1, 1, 1);
+    if(screen.isUseBlur())
+    {
+      if(useColorFading)
+        GL11.glBindTexture(GL11.GL_TEXTURE_2D, pixel3.getTextureID());
+      else
+        GL11.glBindTexture(GL11.GL_TEXTURE_2D, pixel.getTextureID());
+    }
+    else
+      GL11.glBindTexture(GL11.GL_TEXTURE_2D, pixel2.getTextureID());
+
+    float size = 32*(scale/12f); //of each pixel's glow quad
+    float trailOpacity = screen.getTrailOpacity();
+    int deleteDelay = screen.getDeleteDelay();
+    float[] columnColors = frame.getColumnColors();
+    int floats = 0;
+    for (int word = 0; word < renderData.length; word++)
+    {
+      long pixels = renderData[word];
+      while(pixels != 0)
+      {
+        int bit = Long.numberOfLeadingZeros(pixels);
+        pixels &= ~(LEFT_PIXEL >>> bit);
+        int i = word*64 + bit;
+
+        int column = i%pixelsAcross;
+        float x = column*scale-10;
+        float y = i/pixelsAcross*scale-10;
+
+        float red = 1;
+        float green = 1;
+        float blue = 1;
+        if(useColorFading)
+        {
+          red = columnColors[column*3];
+          green = columnColors[column*3 + 1];
+          blue = columnColors[column*3 + 2];
+        }
+
+        float alpha = 1;
+        if(timers[i] != -1)
+          alpha = timers[i]*trailOpacity/deleteDelay;
+
+        float start = 0f;
+        float end = 1f;
+        floats = putVertex(floats, x, y+size, start, end, red, green, blue, alpha);
+        floats = putVertex(floats, x, y, start, start, red, green, blue, alpha);
+        floats = putVertex(floats, x+size, y, end, start, red, green, blue, alpha);
+        floats = putVertex(floats, x+size, y+size, end, end, red, green, blue, alpha);
+      }
+    }
+
+    //submit every pixel's quad in one call
+    if(quads == null || quads.capacity() < quadData.length)
+      quads = BufferUtils.createFloatBuffer(quadData.length);
+    quads.clear();
+    quads.put(quadData, 0, floats);
+
+    GL11.glEnableClientState(GL11.GL_VERTEX_ARRAY);
+    GL11.glEnableClientState(GL11.GL_TEXTURE_COORD_ARRAY);
+    GL11.glEnableClientState(GL11.GL_COLOR_ARRAY);
+    quads.position(0);
+    GL11.glVertexPointer(2, VERTEX_SIZE*4, quads);
+    quads.position(2);
+    GL11.glTexCoordPointer(2, VERTEX_SIZE*4, quads);
+    quads.position(4);
+    GL11.glColorPointer(4, VERTEX_SIZE*4, quads);
+    quads.position(0);
+    GL11.glDrawArrays(GL11.GL_QUADS, 0, floats/VERTEX_SIZE);
+    GL11.glDisableClientState(GL11.GL_COLOR_ARRAY);
+    GL11.glDisableClientState(GL11.GL_TEXTURE_COORD_ARRAY);
+    GL11.glDisableClientState(GL11.GL_VERTEX_ARRAY);
+
+    if(screen.isPaused())
+      renderPaused(pixelsAcross*scale, pixelsHigh*scale);
+
+    try
+    {
+      swapBuffers();
+    } catch (LWJGLException ex)
+    {
+      ex.printStackTrace();
+    }
+  }
+
+  /**
+   * Appends one vertex to quadData as x, y, s, t, red, green, blue, alpha.
+   * @return the index after it
+   */
+  private int putVertex(int index, float x, float y, float s, float t, float red, float green, float blue, float alpha)
+  {
+    quadData[index++] = x;
+    quadData[index++] = y;
+    quadData[index++] = s;
+    quadData[index++] = t;
+    quadData[index++] = red;
+    quadData[index++] = green;
+    quadData[index++] = blue;
+    quadData[index++] = alpha;
+    return index;
+  }
+
+  private void renderPaused(float width, float height)
+  {
+    GL11.glDisable(GL11.GL_TEXTURE_2D);
+
+    GL11.glBlendFunc(GL11.GL_SRC_ALPHA, GL11.GL_ONE_MINUS_SRC_ALPHA);
+    GL11.glColor4f(.7f, .7f, .7f, .7f);
+    GL11.glPushMatrix();
+      GL11.glTranslatef((int)width/2 - 150,
+                        (int)height/2 - 62,
+                        0);
+      GL11.glBegin(GL11.GL_QUADS);
+        GL11.glVertex2f(0, 125);
+        GL11.glVertex2f(0, 0);
+        GL11.glVertex2f(300, 0);
+        GL11.glVertex2f(300, 125);
+      GL11.glEnd();
+      GL11.glColor4f(.8f, .8f, .8f, 1);
+      GL11.glBegin(GL11.GL_LINE_LOOP);
+        GL11.glVertex2f(0, 125);
+        GL11.glVertex2f(0, 0);
+        GL11.glVertex2f(300, 0);
+        GL11.glVertex2f(300, 125);
+      GL11.glEnd();
+    GL11.glPopMatrix();
+
+    float xStart = 0;
+    float xEnd = pausedTexture.getImageWidth()/(float)pausedTexture.getTextureWidth();
+    float yStart = 0;
+    float yEnd = pausedTexture.getImageHeight()/(float)pausedTexture.getTextureHeight();
+
+    pausedTexture.bind();
+    GL11.glColor4f(1, 1, 1, 1);
+    GL11.glEnable(GL11.GL_TEXTURE_2D);
+    GL11.glPushMatrix();
+      GL11.glTranslatef((int)width/2 - 91,
+                        (int)height/2 - 26,
+                        0);
+      GL11.glBegin(GL11.GL_QUADS);
+        GL11.glTexCoord2f(xStart, yEnd); GL11.glVertex2f(0, 53);
+        GL11.glTexCoord2f(xStart, yStart); GL11.glVertex2f(0, 0);
+        GL11.glTexCoord2f(xEnd, yStart); GL11.glVertex2f(182, 0);
+        GL11.glTexCoord2f(xEnd, yEnd); GL11.glVertex2f(182, 53);
+      GL11.glEnd();
+    GL11.glPopMatrix();
+  }
+}
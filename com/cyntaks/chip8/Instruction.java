@@ -0,0 +1,380 @@
+package com.cyntaks.chip8;
+
+/**
+ * A CHIP-8/SCHIP opcode decoded once into a dense operation number plus its
+ * pre-extracted operands, so CPUCore can dispatch with a single switch
+ * instead of re-splitting the nibbles on every fetch.
+ */
+public class Instruction
+{
+  public static final int INVALID = 0;
+  public static final int CLS = 1;
+  public static final int RTS = 2;
+  public static final int SCRIGHT = 3;
+  public static final int SCLEFT = 4;
+  public static final int LOW = 5;
+  public static final int HIGH = 6;
+  public static final int SCDOWN = 7;
+  public static final int EXIT = 8;
+  public static final int JMP = 9;
+  public static final int JSR = 10;
+  public static final int SKEQ = 11;
+  public static final int SKNE = 12;
+  public static final int SKEQ_REG = 13;
+  public static final int MOV = 14;
+  public static final int ADD = 15;
+  public static final int MOV_REG = 16;
+  public static final int OR = 17;
+  public static final int AND = 18;
+  public static final int XOR = 19;
+  public static final int ADD_REG = 20;
+  public static final int SUB = 21;
+  public static final int SHR = 22;
+  public static final int RSB = 23;
+  public static final int SHL = 24;
+  public static final int SKNE_REG = 25;
+  public static final int MVI = 26;
+  public static final int JMI = 27;
+  public static final int RAND = 28;
+  public static final int SPRITE = 29;
+  public static final int XSPRITE = 30;
+  public static final int SKPR = 31;
+  public static final int SKUP = 32;
+  public static final int GDELAY = 33;
+  public static final int KEY = 34;
+  public static final int SDELAY = 35;
+  public static final int SSOUND = 36;
+  public static final int ADI = 37;
+  public static final int FONT = 38;
+  public static final int XFONT = 39;
+  public static final int BCD = 40;
+  public static final int STR = 41;
+  public static final int LDR = 42;
+  
+  //superinstructions fused from common sequences of the ones above
+  public static final int SKEQ_JMP = 43;
+  public static final int SKNE_JMP = 44;
+  public static final int MVI_SPRITE = 45;
+  public static final int MOV_MOV = 46;
+  public static final int TIMER_POLL = 47;
+  
+  public static final int FIRST_FUSED = SKEQ_JMP;
+  public static final int NUM_FUSED = 5;
+  private static final String[] fusedNames = {"3xnn+1nnn", "4xnn+1nnn", "Annn+Dxyn",
+                                              "6xnn+6ynn", "Fx07+3x00+1nnn"};
+
+  private static final Instruction[] table = new Instruction[0x10000];
+
+  private final int opcode;
+  private final int operation;
+  private final int x;
+  private final int y;
+  private final int n;
+  private final int nn;
+  private final int nnn;
+  private final Instruction[] parts;
+
+  private Instruction(int opcode, int operation)
+  {
+    this.opcode = opcode;
+    this.operation = operation;
+    x = (opcode & 0x0F00) >>> 8;
+    y = (opcode & 0x00F0) >>> 4;
+    n = opcode & 0x000F;
+    nn = opcode & 0x00FF;
+    nnn = opcode & 0x0FFF;
+    parts = new Instruction[] {this};
+  }
+  
+  /**
+   * Creates a superinstruction. Its operands are those of the first part;
+   * the handler reads anything else from the individual parts.
+   */
+  private Instruction(int operation, Instruction[] parts)
+  {
+    this.opcode = parts[0].opcode;
+    this.operation = operation;
+    x = parts[0].x;
+    y = parts[0].y;
+    n = parts[0].n;
+    nn = parts[0].nn;
+    nnn = parts[0].nnn;
+    this.parts = parts;
+  }
+
+  /**
+   * Returns the shared decoded form of a 16-bit opcode. Each of the 64K
+   * possible opcodes is decoded at most once and then served from the table.
+   */
+  public static Instruction get(int opcode)
+  {
+    opcode &= 0xFFFF;
+    Instruction instruction = table[opcode];
+    if(instruction == null)
+    {
+      instruction = new Instruction(opcode, decode(opcode));
+      table[opcode] = instruction;
+    }
+    return instruction;
+  }
+
+  public static Instruction get(int first, int second)
+  {
+    return get(first << 8 | second);
+  }
+
+  /**
+   * Returns a superinstruction for the sequence starting with first if it is
+   * one of the fusable idioms, or null otherwise. second and third are the
+   * instructions that follow in memory and may be null past its end.
+   */
+  public static Instruction fuse(Instruction first, Instruction second, Instruction third)
+  {
+    if(second == null)
+      return null;
+    
+    switch(first.operation)
+    {
+      case SKEQ:
+        if(second.operation == JMP)
+          return new Instruction(SKEQ_JMP, new Instruction[] {first, second});
+      break;
+      case SKNE:
+        if(second.operation == JMP)
+          return new Instruction(SKNE_JMP, new Instruction[] {first, second});
+      break;
+      case MVI:
+        if(second.operation == SPRITE || second.operation == XSPRITE)
+          return new Instruction(MVI_SPRITE, new Instruction[] {first, second});
+      break;
+      case MOV:
+        if(second.operation == MOV)
+          return new Instruction(MOV_MOV, new Instruction[] {first, second});
+      break;
+      case GDELAY:
+        if(third != null && second.operation == SKEQ && second.x == first.x && second.nn == 0 &&
+           third.operation == JMP)
+          return new Instruction(TIMER_POLL, new Instruction[] {first, second, third});
+      break;
+    }
+    
+    return null;
+  }
+  
+  public static String getFusedName(int operation)
+  {
+    return fusedNames[operation - FIRST_FUSED];
+  }
+
+  private static int decode(int opcode)
+  {
+    int nn = opcode & 0xFF;
+
+    switch(opcode >>> 12)
+    {
+      case 0x0:
+      {
+        switch(nn)
+        {
+          case 0xE0:
+            return CLS;
+          case 0xEE:
+            return RTS;
+          case 0xFB:
+            return SCRIGHT;
+          case 0xFC:
+            return SCLEFT;
+          case 0xFD:
+            return EXIT;
+          case 0xFE:
+            return LOW;
+          case 0xFF:
+            return HIGH;
+          default:
+            if((nn & 0xF0) == 0xC0)
+              return SCDOWN;
+            return INVALID;
+        }
+      }
+      case 0x1:
+        return JMP;
+      case 0x2:
+        return JSR;
+      case 0x3:
+        return SKEQ;
+      case 0x4:
+        return SKNE;
+      case 0x5:
+        return SKEQ_REG;
+      case 0x6:
+        return MOV;
+      case 0x7:
+        return ADD;
+      case 0x8:
+      {
+        switch(opcode & 0xF)
+        {
+          case 0x0:
+            return MOV_REG;
+          case 0x1:
+            return OR;
+          case 0x2:
+            return AND;
+          case 0x3:
+            return XOR;
+          case 0x4:
+            return ADD_REG;
+          case 0x5:
+            return SUB;
+          case 0x6:
+            return SHR;
+          case 0x7:
+            return RSB;
+          case 0xE:
+            return SHL;
+          default:
+            return INVALID;
+        }
+      }
+      case 0x9:
+        return SKNE_REG;
+      case 0xA:
+        return MVI;
+      case 0xB:
+        return JMI;
+      case 0xC:
+        return RAND;
+      case 0xD:
+        return (opcode & 0xF) != 0 ? SPRITE : XSPRITE;
+      case 0xE:
+      {
+        switch(nn)
+        {
+          case 0x9E:
+            return SKPR;
+          case 0xA1:
+            return SKUP;
+          default:
+            return INVALID;
+        }
+      }
+      case 0xF:
+      {
+        switch(nn)
+        {
+          case 0x07:
+            return GDELAY;
+          case 0x0A:
+            return KEY;
+          case 0x15:
+            return SDELAY;
+          case 0x18:
+            return SSOUND;
+          case 0x1E:
+            return ADI;
+          case 0x29:
+            return FONT;
+          case 0x30:
+            return XFONT;
+          case 0x33:
+            return BCD;
+          case 0x55:
+            return STR;
+          case 0x65:
+            return LDR;
+          default:
+            return INVALID;
+        }
+      }
+      default:
+        return INVALID;
+    }
+  }
+
+  /**
+   * Whether this instruction can leave the program counter anywhere other
+   * than the following instruction, which makes it the last one in a block.
+   */
+  public boolean endsBlock()
+  {
+    switch(operation)
+    {
+      case JMP:
+      case JSR:
+      case RTS:
+      case JMI:
+      case SKEQ:
+      case SKNE:
+      case SKEQ_REG:
+      case SKNE_REG:
+      case SKPR:
+      case SKUP:
+      case KEY:
+      case EXIT:
+      case SKEQ_JMP:
+      case SKNE_JMP:
+      case TIMER_POLL:
+      case INVALID:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  public boolean isFused()
+  {
+    return parts.length > 1;
+  }
+  
+  /**
+   * Returns the i'th original instruction making up this one. A plain
+   * instruction is its own only part.
+   */
+  public Instruction getPart(int i)
+  {
+    return parts[i];
+  }
+  
+  /**
+   * Returns how many bytes of memory this instruction covers.
+   */
+  public int getLength()
+  {
+    return parts.length*2;
+  }
+
+  public int getOpcode()
+  {
+    return opcode;
+  }
+
+  public int getOperation()
+  {
+    return operation;
+  }
+
+  public int getX()
+  {
+    return x;
+  }
+
+  public int getY()
+  {
+    return y;
+  }
+
+  public int getN()
+  {
+    return n;
+  }
+
+  public int getNN()
+  {
+    return nn;
+  }
+
+  public int getNNN()
+  {
+    return nnn;
+  }
+}
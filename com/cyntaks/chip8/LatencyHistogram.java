@@ -0,0 +1,100 @@
+package com.cyntaks.chip8;
+
+/**
+ * Counts latencies into buckets by upper limit, keeping their number, mean
+ * and maximum alongside. One thread can record while others read or clear;
+ * every method holds the histogram's lock, so what a reader sees always
+ * adds up.
+ */
+public class LatencyHistogram
+{
+  private long[] limits; //bucket upper limits, in microseconds
+  private long[] counts; //one more than there are limits, for everything past the last
+  private long samples;
+  private long total; //nanoseconds
+  private long max;
+
+  public LatencyHistogram(long[] limits)
+  {
+    this.limits = limits.clone();
+    counts = new long[limits.length+1];
+  }
+
+  public synchronized void record(long latency) //nanoseconds
+  {
+    long micros = latency/1000;
+    int bucket = 0;
+    while(bucket < limits.length && micros >= limits[bucket])
+    {
+      bucket++;
+    }
+    counts[bucket]++;
+
+    samples++;
+    total += latency;
+    if(latency > max)
+      max = latency;
+  }
+
+  public synchronized void clear()
+  {
+    for (int i = 0; i < counts.length; i++)
+    {
+      counts[i] = 0;
+    }
+    samples = 0;
+    total = 0;
+    max = 0;
+  }
+
+  /**
+   * Returns a copy of how many latencies fell within each bucket; see
+   * getLimits(). The last entry counts everything past the last limit.
+   */
+  public synchronized long[] getCounts()
+  {
+    return counts.clone();
+  }
+
+  public long[] getLimits()
+  {
+    return limits.clone();
+  }
+
+  public synchronized long getSamples()
+  {
+    return samples;
+  }
+
+  public synchronized long getMean() //nanoseconds
+  {
+    return samples == 0 ? 0 : total/samples;
+  }
+
+  public synchronized long getMax() //nanoseconds
+  {
+    return max;
+  }
+
+  /**
+   * Describes the histogram as a heading followed by one line per bucket,
+   * such as "Beep latency over 3 beeps (mean 1200us, max 2000us, 0 underruns):".
+   * @param what what was measured
+   * @param unit what a sample is, in the plural
+   * @param extra more counts for the heading, or null
+   */
+  public synchronized String getReport(String what, String unit, String extra)
+  {
+    StringBuffer report = new StringBuffer(what + " over " + samples + " " + unit + " (mean " +
+                                           getMean()/1000 + "us, max " + max/1000 + "us" +
+                                           (extra == null ? "" : ", " + extra) + "):");
+    for (int i = 0; i < counts.length; i++)
+    {
+      if(i < limits.length)
+        report.append("\n  < " + limits[i] + "us: " + counts[i]);
+      else
+        report.append("\n  >= " + limits[i-1] + "us: " + counts[i]);
+    }
+    return report.toString();
+  }
+}
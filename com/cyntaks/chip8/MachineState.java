@@ -0,0 +1,230 @@
+package com.cyntaks.chip8;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * A serialized snapshot of everything that defines a running machine, laid
+ * out in one contiguous off-heap block so that copying a snapshot is a
+ * single bulk transfer and other tools can read it straight out of the
+ * buffer (or a file it was written to). The block is little-endian and
+ * always sized for the SCHIP screen:
+ *
+ * <pre>
+ * offset  size   contents
+ * 0       4      MAGIC
+ * 4       4      VERSION
+ * 8       4      memory size in bytes, m
+ * 12      4      screen width in pixels (64 or 128)
+ * 16      4      screen height in pixels (32 or 64)
+ * 20      12     unused
+ * 32      64     V0 to VF, one int each
+ * 96      4      I
+ * 100     4      program counter
+ * 104     4      stack pointer
+ * 108     4      delay timer
+ * 112     4      sound timer
+ * 116     64     stack, one int per entry
+ * 180     12     unused
+ * 192     16     keys 0 to F, 1 if down
+ * 208     m      memory
+ * 208+m   1040   screen pixels, 130 longs, leftmost pixel in the top bit
+ *         1040   render plane, in the same layout
+ *         1040   fading plane, in the same layout
+ *         33280  fade timers, one int per pixel
+ * </pre>
+ *
+ * The planes and timers cover width*(height+1) pixels of the current
+ * screen; the rest of their space is zero.
+ *
+ * This is a snapshot, not the live state: the emulator keeps working on
+ * its own arrays, and the block only changes when capture() gathers them
+ * into it again, with one bulk transfer per array. The live registers stay
+ * a plain int[] because compiled blocks work on it directly. Neither
+ * capture() nor restore() should run while the emulation thread is
+ * executing.
+ */
+public class MachineState
+{
+  public static final int MAGIC = 0x54533843; //the bytes "C8ST"
+  public static final int VERSION = 1;
+
+  public static final int REGISTERS = 32;
+  public static final int ADDRESS_REGISTER = 96;
+  public static final int PROGRAM_COUNTER = 100;
+  public static final int STACK_POINTER = 104;
+  public static final int DELAY_TIMER = 108;
+  public static final int SOUND_TIMER = 112;
+  public static final int STACK = 116;
+  public static final int KEYS = 192;
+  public static final int MEMORY = 208;
+
+  private static final int MAX_WORDS = 2*65; //128x64 screen plus its hidden row
+  private static final int PLANE_SIZE = MAX_WORDS*8;
+
+  private ByteBuffer block;
+  private int memorySize;
+
+  public MachineState(int memorySize)
+  {
+    this.memorySize = memorySize;
+    block = ByteBuffer.allocateDirect(MEMORY + memorySize + 3*PLANE_SIZE + MAX_WORDS*64*4);
+    block.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Copies the state of a machine into the block, replacing whatever
+   * snapshot it held.
+   */
+  public void capture(CPU cpu, Memory memory, Screen screen, CPUCore cpuCore)
+  {
+    block.clear();
+    block.putInt(MAGIC);
+    block.putInt(VERSION);
+    block.putInt(memorySize);
+    block.putInt(screen.getPixelsAcross());
+    block.putInt(screen.getPixelsHigh());
+
+    block.position(REGISTERS);
+    for (int i = 0; i < CPU.NUM_REGISTERS; i++)
+    {
+      block.putInt(cpu.getRegisterValue(i));
+    }
+    block.putInt(cpu.getAddressRegister());
+    block.putInt(cpu.getProgramCounter());
+    block.putInt(cpu.getStackPointer());
+    block.putInt(cpu.getDelayTimer());
+    block.putInt(cpu.getSoundTimer());
+    block.asIntBuffer().put(cpu.getStack());
+
+    block.position(KEYS);
+    for (int i = 0; i < 16; i++)
+    {
+      block.put((byte)(cpuCore.isKeyPressed(i) ? 1 : 0));
+    }
+
+    block.position(MEMORY);
+    memory.copyTo(block);
+
+    putPlane(screen.getData(), getDataOffset());
+    putPlane(screen.getRenderData(), getRenderDataOffset());
+    putPlane(screen.getDeleteBuffer(), getDeleteBufferOffset());
+    IntBuffer timers = slice(getTimersOffset()).asIntBuffer();
+    timers.put(screen.getTimers());
+    while(timers.hasRemaining())
+      timers.put(0);
+
+    block.clear();
+  }
+
+  private void putPlane(long[] plane, int offset)
+  {
+    LongBuffer out = slice(offset).asLongBuffer();
+    out.put(plane);
+    while(out.position() < MAX_WORDS)
+      out.put(0);
+  }
+
+  /**
+   * Puts a machine back into the state held by the block, after checking
+   * that its header describes one this emulator can hold. Nothing is
+   * changed if it doesn't.
+   */
+  public void restore(CPU cpu, Memory memory, Screen screen, CPUCore cpuCore)
+  {
+    if(block.getInt(0) != MAGIC)
+      throw new IllegalStateException("Not a machine state");
+    if(block.getInt(4) != VERSION)
+      throw new IllegalStateException("Machine state version " + block.getInt(4) + ", expected " + VERSION);
+    if(block.getInt(8) != memory.getSize())
+      throw new IllegalStateException("Machine state for " + block.getInt(8) + " bytes of memory, not " +
+                                      memory.getSize());
+    int width = block.getInt(12);
+    int height = block.getInt(16);
+    if(!(width == 64 && height == 32) && !(width == 128 && height == 64))
+      throw new IllegalStateException("Machine state screen of " + width + "x" + height +
+                                      ", expected 64x32 or 128x64");
+
+    if(width != screen.getPixelsAcross())
+      cpuCore.setUseSChip(width == 128);
+
+    for (int i = 0; i < CPU.NUM_REGISTERS; i++)
+    {
+      cpu.setRegister(i, block.getInt(REGISTERS + i*4));
+    }
+    cpu.setAddressRegister(block.getInt(ADDRESS_REGISTER));
+    cpu.setProgramCounter(block.getInt(PROGRAM_COUNTER));
+    cpu.setStackPointer(block.getInt(STACK_POINTER));
+    cpu.setDelayTimer(block.getInt(DELAY_TIMER));
+    cpu.setSoundTimer(block.getInt(SOUND_TIMER));
+    slice(STACK).asIntBuffer().get(cpu.getStack());
+
+    for (int i = 0; i < 16; i++)
+    {
+      if(block.get(KEYS + i) != 0)
+        cpuCore.keyPressed(CHIP8.intToHex(i));
+      else
+        cpuCore.keyReleased(CHIP8.intToHex(i));
+    }
+
+    ByteBuffer contents = slice(MEMORY);
+    contents.limit(memorySize);
+    memory.load(contents, 0);
+
+    slice(getDataOffset()).asLongBuffer().get(screen.getData());
+    slice(getRenderDataOffset()).asLongBuffer().get(screen.getRenderData());
+    slice(getDeleteBufferOffset()).asLongBuffer().get(screen.getDeleteBuffer());
+    slice(getTimersOffset()).asIntBuffer().get(screen.getTimers());
+    screen.setTimers(screen.getTimers()); //finds the fading pixels again
+  }
+
+  /**
+   * Makes other hold the same state as this, with one bulk copy.
+   */
+  public void copyTo(MachineState other)
+  {
+    ByteBuffer all = block.duplicate(); //a Buffer's clear() only returns a ByteBuffer from Java 9 on
+    all.clear();
+    other.block.clear();
+    other.block.put(all);
+    other.block.clear();
+  }
+
+  private ByteBuffer slice(int offset)
+  {
+    ByteBuffer slice = block.duplicate();
+    slice.position(offset);
+    return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  public int getDataOffset()
+  {
+    return MEMORY + memorySize;
+  }
+
+  public int getRenderDataOffset()
+  {
+    return getDataOffset() + PLANE_SIZE;
+  }
+
+  public int getDeleteBufferOffset()
+  {
+    return getRenderDataOffset() + PLANE_SIZE;
+  }
+
+  public int getTimersOffset()
+  {
+    return getDeleteBufferOffset() + PLANE_SIZE;
+  }
+
+  /**
+   * Returns the block itself, positioned at 0, for writing out or mapping
+   * by other tools.
+   */
+  public ByteBuffer getBlock()
+  {
+    return block;
+  }
+}
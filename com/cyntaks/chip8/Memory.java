@@ -1,33 +1,299 @@
 package com.cyntaks.chip8;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The machine's RAM, one byte per address. Bytes are handed out unsigned,
+ * from 0 to 255.
+ */
 public class Memory 
 {
   public static final int PROGRAM_START = 0x200;
+  public static final int MAX_INSTRUCTION_LENGTH = 6; //bytes, of the longest superinstruction
   
-  private int[] contents;
+  private byte[] contents;
+  private Instruction[] decoded; //decoded instruction starting at each address, null until fetched
+  private int codeVersion; //bumped whenever a write lands on decoded code
+  private int dirtyStart; //addresses [dirtyStart, dirtyEnd) cover all decoded code overwritten since clearDirtyCode()
+  private int dirtyEnd;
+  private boolean fuseInstructions = true;
+  private long[] watched; //bitmap of the bytes whose writes are recorded in watchedWrites
+  private int[] watchedWrites; //each written watched byte once, as it stops being watched
+  private int watchedWriteCount;
+  private int watchVersion; //bumped when reset() drops every watch
   
   public Memory(int numBytes)
   {
-    contents = new int[numBytes];
+    contents = new byte[numBytes];
+    decoded = new Instruction[numBytes];
+    watched = new long[(numBytes+63)/64];
+    watchedWrites = new int[numBytes];
     reset();
   }
   
   public int load(int address)
   {
-    return contents[address];
+    return contents[address] & 0xFF;
+  }
+  
+  /**
+   * Copies the remaining bytes of data into memory starting at address.
+   */
+  public void load(ByteBuffer data, int address)
+  {
+    int length = data.remaining();
+    data.get(contents, address, length);
+    invalidate(address, address+length);
+  }
+  
+  /**
+   * Copies all of memory into out, starting at its position.
+   */
+  public void copyTo(ByteBuffer out)
+  {
+    out.put(contents);
+  }
+  
+  /**
+   * Reads a whole ROM file straight into memory at PROGRAM_START.
+   * @throws IOException if the file is too large, or ends before its
+   * reported size has been read
+   */
+  public void load(Path file) throws IOException
+  {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+    try 
+    {
+      if(channel.size() > contents.length-PROGRAM_START)
+        throw new IOException(file + " is too large to fit in memory (" + channel.size() + " bytes)");
+      
+      ByteBuffer buffer = ByteBuffer.wrap(contents, PROGRAM_START, (int)channel.size());
+      int read = 0;
+      while(buffer.hasRemaining() && read != -1) //a read may stop short of the end
+      {
+        read = channel.read(buffer);
+      }
+      invalidate(PROGRAM_START, buffer.position());
+      if(buffer.hasRemaining())
+        throw new IOException(file + " ended after " + (buffer.position()-PROGRAM_START) + " of its " +
+                              channel.size() + " bytes");
+    }
+    finally
+    {
+      channel.close();
+    }
+  }
+  
+  /**
+   * Returns the decoded instruction starting at the given address. The result
+   * is cached until any of its bytes is overwritten through store().
+   */
+  public Instruction fetch(int address)
+  {
+    Instruction instruction = decoded[address];
+    if(instruction == null)
+    {
+      instruction = decode(address);
+      if(fuseInstructions && instruction != null)
+      {
+        Instruction fused = Instruction.fuse(instruction, decode(address+2), decode(address+4));
+        if(fused != null)
+          instruction = fused;
+      }
+      decoded[address] = instruction;
+    }
+    return instruction;
+  }
+  
+  private Instruction decode(int address)
+  {
+    if(address+1 >= contents.length)
+      return null;
+    return Instruction.get(load(address), load(address+1));
   }
   
   public void store(int address, int data)
   {
-    contents[address] = data;
+    contents[address] = (byte)data;
+    if(isWatched(address))
+      recordWatchedWrite(address);
+    
+    //drop every decoded instruction covering this byte, fused ones span up to 6
+    for (int i = address; i >= 0 && i > address-MAX_INSTRUCTION_LENGTH; i--) 
+    {
+      if(decoded[i] != null && decoded[i].getLength() > address-i)
+      {
+        decoded[i] = null;
+        codeVersion++;
+        markDirty(i, address+1);
+      }
+    }
   }
   
-  public void reset()
+  /**
+   * Does for the bytes from start up to end what store() does for one.
+   */
+  private void invalidate(int start, int end)
   {
-    for (int i = 0; i < contents.length-PROGRAM_START; i++) 
+    boolean changed = false;
+    for (int i = Math.max(0, start-MAX_INSTRUCTION_LENGTH+1); i < end; i++) 
+    {
+      if(decoded[i] != null && i + decoded[i].getLength() > start)
+      {
+        decoded[i] = null;
+        changed = true;
+      }
+    }
+    if(changed)
     {
-      contents[PROGRAM_START + i] = 0; 
+      codeVersion++;
+      markDirty(Math.max(0, start-MAX_INSTRUCTION_LENGTH+1), end);
     }
+    
+    for (int i = start; i < end; i++) 
+    {
+      if(isWatched(i))
+        recordWatchedWrite(i);
+    }
+  }
+  
+  /**
+   * Notes a write to a watched byte and stops watching it, so each byte is
+   * recorded at most once until it is watched again.
+   */
+  private void recordWatchedWrite(int address)
+  {
+    watched[address >>> 6] &= ~(1L << address);
+    watchedWrites[watchedWriteCount++] = address;
+  }
+  
+  private void markDirty(int start, int end)
+  {
+    dirtyStart = Math.min(dirtyStart, start);
+    dirtyEnd = Math.max(dirtyEnd, end);
+  }
+  
+  /**
+   * Returns the first address of the decoded code overwritten since the last
+   * clearDirtyCode(). Nothing has been if it isn't below getDirtyCodeEnd().
+   */
+  public int getDirtyCodeStart()
+  {
+    return dirtyStart;
+  }
+  
+  /**
+   * Returns the address just past the overwritten decoded code.
+   */
+  public int getDirtyCodeEnd()
+  {
+    return dirtyEnd;
+  }
+  
+  public void clearDirtyCode()
+  {
+    dirtyStart = contents.length;
+    dirtyEnd = 0;
+  }
+  
+  private boolean isWatched(int address)
+  {
+    return (watched[address >>> 6] & 1L << address) != 0;
+  }
+  
+  public boolean isFuseInstructions()
+  {
+    return fuseInstructions;
+  }
+  
+  /**
+   * Sets whether fetch() combines common instruction sequences into
+   * superinstructions.
+   */
+  public void setFuseInstructions(boolean fuseInstructions)
+  {
+    this.fuseInstructions = fuseInstructions;
+    for (int i = 0; i < decoded.length; i++) 
+    {
+      decoded[i] = null;
+    }
+    codeVersion++;
+    markDirty(0, contents.length);
+  }
+  
+  /**
+   * Marks bytes that something has cached a copy of, so that the first
+   * write to each of them is recorded; see getWatchedWrites().
+   */
+  public void watch(int address, int length)
+  {
+    for (int i = address; i < address+length; i++) 
+    {
+      watched[i >>> 6] |= 1L << i;
+    }
+  }
+  
+  /**
+   * Stops watching a byte no cached copy depends on any more.
+   */
+  public void unwatch(int address)
+  {
+    watched[address >>> 6] &= ~(1L << address);
+  }
+  
+  /**
+   * Returns the addresses of the watched bytes written since the last
+   * clearWatchedWrites(); the first getWatchedWriteCount() entries are
+   * valid. Those bytes are no longer watched.
+   */
+  public int[] getWatchedWrites()
+  {
+    return watchedWrites;
+  }
+  
+  public int getWatchedWriteCount()
+  {
+    return watchedWriteCount;
+  }
+  
+  public void clearWatchedWrites()
+  {
+    watchedWriteCount = 0;
+  }
+  
+  /**
+   * Returns a number that changes whenever reset() drops every watch at
+   * once, without recording the writes.
+   */
+  public int getWatchVersion()
+  {
+    return watchVersion;
+  }
+  
+  public int getCodeVersion()
+  {
+    return codeVersion;
+  }
+  
+  public int getSize()
+  {
+    return contents.length;
+  }
+  
+  public void reset()
+  {
+    Arrays.fill(contents, PROGRAM_START, contents.length, (byte)0);
+    Arrays.fill(decoded, null);
+    Arrays.fill(watched, 0);
+    watchedWriteCount = 0;
+    codeVersion++;
+    markDirty(0, contents.length);
+    watchVersion++;
   }
   
   public void dump()
@@ -37,7 +303,7 @@ public class Memory
     
     for (int i = 0; i < contents.length; i++) 
     {
-      int theByte = contents[i];
+      int theByte = load(i);
       counter++;
       if(counter % 2 == 0)
       {
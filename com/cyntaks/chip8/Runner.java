@@ -1,6 +1,5 @@
 package com.cyntaks.chip8;
 
-import com.cyntaks.chip8.utils.TextureLoader;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Rectangle;
@@ -44,12 +43,9 @@ public class Runner implements ActionListener, FocusListener
   private CHIP8 chip8;
   
   private boolean wasPaused;
-  private boolean canvasRemoved;
   
   private KeyListener keyListener;
   
-  private int oldWidth;
-  private int oldHeight;
   private int oldFrameWidth;
   private int oldFrameHeight;
   
@@ -58,7 +54,7 @@ public class Runner implements ActionListener, FocusListener
     chip8 = new CHIP8(false, 12);
     
     mainFrame = new JFrame("Weston's CHIP-8 Emulator");
-    mainFrame.getContentPane().add(chip8.getScreen());
+    mainFrame.getContentPane().add(chip8.getCanvas());
     
     buildMenu();
     
@@ -86,9 +82,15 @@ public class Runner implements ActionListener, FocusListener
       }
     };
     
+    mainFrame.addWindowListener(new WindowAdapter(){
+      public void windowClosing(WindowEvent e)
+      {
+        chip8.close(); //before EXIT_ON_CLOSE exits
+      }
+    });
     mainFrame.addFocusListener(this);
     mainFrame.addKeyListener(keyListener);
-    chip8.getScreen().addKeyListener(keyListener);
+    chip8.getCanvas().addKeyListener(keyListener);
     mainFrame.addKeyListener(chip8);
     mainFrame.setVisible(true);
     oldFrameWidth = mainFrame.getWidth();
@@ -182,39 +184,30 @@ public class Runner implements ActionListener, FocusListener
                           height/2-mainFrame.getHeight()/2);
   }
   
+  /**
+   * Pauses while the window is in the background. The canvas (and its GL
+   * context, if it has one) stays as it is, so nothing needs rebuilding on
+   * return.
+   */
   public void focusLost(FocusEvent e)
   {
-    Object source = e.getSource();
-    oldWidth = chip8.getScreen().getWidth();
-    oldHeight = chip8.getScreen().getHeight();
     chip8.getCpuCore().setPaused(true);
-    mainFrame.remove(chip8.getScreen());
-    canvasRemoved = true;
   }
   
   public void focusGained(FocusEvent e)
   {
-    Object source = e.getSource();
     if(!wasPaused)
       chip8.getCpuCore().setPaused(false);
-    if(canvasRemoved)
-    {
-      TextureLoader.clear();
-      chip8.recreateScreen();
-      chip8.getScreen().addKeyListener(keyListener);
-      mainFrame.getContentPane().add(chip8.getScreen());
-      chip8.getScreen().setSize(oldWidth, oldHeight);
-      canvasRemoved = false;
-      
-      chip8.getScreen().reload();
-    }
   }
   
   public void actionPerformed(ActionEvent e)
   {
     Object source = e.getSource();
     if(e.getSource() == exit)
+    {
+      chip8.close();
       System.exit(0);
+    }
     else if(e.getSource() == reset)
     {
       chip8.reset();
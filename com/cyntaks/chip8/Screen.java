@@ -1,61 +1,66 @@
 package com.cyntaks.chip8;
 
-import com.cyntaks.chip8.utils.Texture;
-import com.cyntaks.chip8.utils.TextureLoader;
-import java.awt.*;
-import java.awt.event.ComponentAdapter;
-import java.awt.event.ComponentEvent;
-import java.awt.event.ComponentListener;
-import java.awt.image.BufferStrategy;
-import java.awt.image.BufferedImage;
-import java.io.BufferedInputStream;
+import java.awt.Component;
 import java.io.IOException;
-import javax.imageio.ImageIO;
-import javax.swing.JPanel;
-import org.lwjgl.LWJGLException;
-import org.lwjgl.opengl.AWTGLCanvas;
-import org.lwjgl.opengl.GL11;
-import org.lwjgl.opengl.glu.GLU;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-public class Screen extends AWTGLCanvas
+/**
+ * The emulated display: the pixel planes, fading trails and colour
+ * animation, with the finished frames handed to whichever canvas shows
+ * them, GLScreenCanvas or SoftwareScreenCanvas. Nothing here needs OpenGL.
+ */
+public class Screen
 {
-  private int[] data;
-  private int[] renderData;
-  private int[] deleteBuffer;
+  //pixel planes, one bit per pixel packed 64 to a long, row by row with the
+  //leftmost pixel of each word in its most significant bit
+  private long[] data;
+  private long[] renderData;
+  private long[] deleteBuffer;
   private int[] timers;
+  private int[] fading; //indices of the pixels whose timers are counting down
+  private int[] fadingSlot; //where each pixel is in fading, or -1
+  private int fadingCount;
+  private volatile FrameHandoff frames; //what the canvas draws, published by update()
+  private AtomicBoolean repaintPending = new AtomicBoolean();
+  private Component canvas; //repainted whenever a frame is published
+  
+  private static final long LEFT_PIXEL = 0x8000000000000000L;
+  private static final int MAX_PIXELS = 128*64;
   
   private int width;
   private int height;
   private int scale;
+  private int wordsPerRow;
+  private long[] rowMasks = new long[2]; //scratch space for drawSpriteRow
   
-  private Texture pixel;
-  private Texture pixel2;
-  private Texture pixel3;
-  private Texture pausedTexture;
-  private boolean paused;
+  private volatile boolean paused;
   private boolean reduceFlicker;
   private int deleteDelay = 60;
   private float trailOpacity = 1.2f;
-    
-  private boolean loaded;
   
   private float[][] color;
   private float[][] lastColor;
   private float[] time;
   private float[] lastTime;
   private float[] positions;
+  private float[] stopColors = new float[NUM_POSITIONS*3]; //scratch for fillColumnColors
+  private float[] softwareColors; //column colours for renderSoftware
+  private Random random = new Random(); //drives the colour animation, reseeded by resetColors()
   
   private static final int NUM_POSITIONS = 4;
   private static final int RED = 0;
   private static final int GREEN = 1;
   private static final int BLUE = 2;
+  private static final long COLOR_SEED = 1;
   
   private boolean useBlur;
   private boolean useColorFading;
   
   private boolean schip;
   
-  public Screen() throws LWJGLException
+  public Screen()
   {
     init(64, 32);
     
@@ -63,15 +68,6 @@ public class Screen extends AWTGLCanvas
     useBlur = true;
     useColorFading = true;
     
-    ComponentListener listener = new ComponentAdapter(){
-      public void componentResized(ComponentEvent e)
-      {
-        loaded = false;
-      }
-    };
-    
-    this.addComponentListener(listener);
-    setSize(width*12, height*12);
     reset();
   }
   
@@ -89,16 +85,22 @@ public class Screen extends AWTGLCanvas
   {
     this.width = width;
     this.height = height;
-    this.scale = (int)((64f/width)*12);
+    this.scale = getScale(width);
+    this.wordsPerRow = width/64;
     
-    data = new int[width*(height+1)];
-    renderData = new int[data.length];
-    deleteBuffer = new int[data.length];
-    timers = new int[data.length];
+    data = new long[wordsPerRow*(height+1)];
+    renderData = new long[data.length];
+    deleteBuffer = new long[data.length];
+    timers = new int[width*(height+1)];
+    frames = new FrameHandoff(width, height, data.length);
+    fading = new int[timers.length];
+    fadingSlot = new int[timers.length];
+    fadingCount = 0;
     
     for (int i = 0; i < timers.length; i++) 
     {
       timers[i] = -1;
+      fadingSlot[i] = -1;
     }
     
     color = new float[NUM_POSITIONS][3];
@@ -106,314 +108,348 @@ public class Screen extends AWTGLCanvas
     time = new float[NUM_POSITIONS];
     lastTime = new float[NUM_POSITIONS];
     positions = new float[NUM_POSITIONS];
-    
+    resetColors();
+  }
+  
+  /**
+   * Starts the colour animation over from the same seed, so that the same
+   * run of a ROM always publishes the same frames.
+   */
+  private void resetColors()
+  {
+    random.setSeed(COLOR_SEED);
     for (int i = 0; i < NUM_POSITIONS; i++) 
     {
       float segSize = (width*scale)/(float)(NUM_POSITIONS-1);
       positions[i] = segSize*i;
-      color[i][RED] = (float)Math.random();
-      color[i][GREEN] = (float)Math.random();
-      color[i][BLUE] = (float)Math.random();
+      color[i][RED] = random.nextFloat();
+      color[i][GREEN] = random.nextFloat();
+      color[i][BLUE] = random.nextFloat();
                 
       timeUp(i);
     }
   }
   
-  private void loadImages()
+  public boolean setPixel(int row, int col, int value)
+  {
+    if(value == 1)
+      return xorWord(row*wordsPerRow + (col >>> 6), LEFT_PIXEL >>> (col & 63), row);
+    else
+      return false;
+  }
+  
+  /**
+   * XORs the pixels in mask into one word of the screen.
+   * @return whether any pixel was turned off
+   */
+  private boolean xorWord(int word, long mask, int row)
+  {
+    long old = data[word];
+    long erased = old & mask;
+    long lit = mask & ~old;
+    
+    data[word] = old ^ mask;
+    deleteBuffer[word] = (deleteBuffer[word] | erased) & ~lit;
+    if(!reduceFlicker)
+      renderData[word] &= ~erased;
+    if(row < this.height)
+      renderData[word] |= lit;
+    
+    //erased pixels start fading out, lit ones stop
+    setTimers(word, erased, deleteDelay);
+    setTimers(word, lit, -1);
+    
+    return erased != 0;
+  }
+  
+  private void setTimers(int word, long pixels, int value)
   {
-    try 
+    while(pixels != 0)
     {
-      pixel = TextureLoader.getTexture("images/pixel.png");
-      pixel2 = TextureLoader.getTexture("images/pixel2.png"); 
-      pixel3 = TextureLoader.getTexture("images/pixel3.png");
-      pausedTexture = TextureLoader.getTexture("images/paused.png");
-    } catch (IOException ex) 
+      int bit = Long.numberOfLeadingZeros(pixels);
+      pixels &= ~(LEFT_PIXEL >>> bit);
+      int i = word*64 + bit;
+      timers[i] = value;
+      if(value > 0)
+        startFading(i);
+      else
+        stopFading(i);
+    }
+  }
+  
+  private void startFading(int i)
+  {
+    if(fadingSlot[i] == -1)
     {
-      ex.printStackTrace();
+      fadingSlot[i] = fadingCount;
+      fading[fadingCount++] = i;
     }
   }
   
-  public boolean setPixel(int row, int col, int value)
+  private void stopFading(int i)
   {
-    int index = row*width + col;
-    if(value == 1)
+    int slot = fadingSlot[i];
+    if(slot != -1)
+    {
+      int last = fading[--fadingCount];
+      fading[slot] = last;
+      fadingSlot[last] = slot;
+      fadingSlot[i] = -1;
+    }
+  }
+  
+  public void setAbsolutePixelValue(int index, int value)
+  {
+    if(index < MAX_PIXELS)
     {
-      int newVal = data[index] ^ 1;
-      if(newVal == 0)
+      int word = index >>> 6;
+      long mask = LEFT_PIXEL >>> (index & 63);
+      if(value == 1)
       {
-        data[index] = 0;
-        deleteBuffer[index] = 1;
-        timers[index] = deleteDelay;
-        if(!reduceFlicker)
-          renderData[index] = 0;
-        return true;
+        data[word] |= mask;
+        renderData[word] |= mask;
       }
       else
       {
-        deleteBuffer[index] = 0;
-        data[index] = 1;
-        if(row < this.height)
-          renderData[index] = 1;
-        timers[index] = -1;
-        return false;
+        data[word] &= ~mask;
+        renderData[word] &= ~mask;
       }
+      deleteBuffer[word] &= ~mask;
+      timers[index] = -1;
+      stopFading(index);
     }
-    else
-      return false;
   }
   
-  public void setAbsolutePixelValue(int index, int value)
+  private int getAbsolutePixelValue(int index)
   {
-    if(index < 128*64)
-    {
-      data[index] = value;
-      deleteBuffer[index] = 0;
-      timers[index] = -1;
-      renderData[index] = value;
-    }
+    return (int)(data[index >>> 6] >>> (63 - (index & 63))) & 1;
   }
   
   public void updateDeleteBuffer()
   {
-    for (int i = 0; i < timers.length; i++) 
+    updateDeleteBuffer(1);
+  }
+  
+  /**
+   * Counts the fading pixels down by the given number of steps, removing
+   * the ones that run out. Only pixels actually fading are visited.
+   */
+  public void updateDeleteBuffer(int steps)
+  {
+    for (int slot = fadingCount-1; slot >= 0; slot--) 
     {
-      if(deleteBuffer[i] == 1 && timers[i] != -1) 
+      int i = fading[slot];
+      timers[i] -= steps;
+      if(timers[i] <= 0)
       {
-        timers[i]--;
-        if(timers[i] == 0)
-        {
-          deleteBuffer[i] = 0;
-          renderData[i] = 0;
-          timers[i] = -1;
-        }
+        long mask = LEFT_PIXEL >>> (i & 63);
+        deleteBuffer[i >>> 6] &= ~mask;
+        renderData[i >>> 6] &= ~mask;
+        timers[i] = -1;
+        stopFading(i);
       }
     }
   }
   
+  /**
+   * Whether any erased pixels are still fading out.
+   */
+  public boolean isFading()
+  {
+    return fadingCount > 0;
+  }
+  
   public int getPixel(int row, int col)
   {
-    return data[row*width + col];
+    return getAbsolutePixelValue(row*width + col);
   }
   
-  public boolean drawSprite(int xOff, int yOff, int width, int[] pixels)
-  { 
+  /**
+   * XORs one row of a sprite onto the screen, wrapping around both edges.
+   * @param bits the row's pixels, leftmost in bit width-1
+   * @return whether any pixel was turned off
+   */
+  public boolean drawSpriteRow(int x, int y, int bits, int width)
+  {
+    shiftRow(bits, width, x % this.width, this.width, rowMasks, 0);
+    return drawSpriteRows(y, rowMasks, 1);
+  }
+  
+  /**
+   * XORs rows already shifted into place by shiftRow() onto the screen,
+   * starting at row y and wrapping around the bottom edge.
+   * @return whether any pixel was turned off
+   */
+  public boolean drawSpriteRows(int y, long[] masks, int rows)
+  {
     boolean collision = false;
-    for (int i = 0; i < pixels.length; i++) 
+    int mask = 0;
+    for (int i = 0; i < rows; i++) 
     {
-      int x = (xOff + i%width)%this.width;
-      int y = (yOff + i/width)%(this.height+1);
-      
-      if(setPixel(y, x, pixels[i])) 
-        collision = true;
+      int row = (y + i) % (this.height+1);
+      int first = row*wordsPerRow;
+      for (int j = 0; j < wordsPerRow; j++) 
+      {
+        if(xorWord(first + j, masks[mask++], row))
+          collision = true;
+      }
     }
-    
     return collision;
   }
   
-  public void scrollDown(int lines)
-  {
-    int elements = this.width*lines;
+  /**
+   * Places a sprite row at column x of a screen row, wrapping around the
+   * right edge, as the one (64 wide) or two (128 wide) words of that row.
+   * @param bits the row's pixels, leftmost in bit width-1
+   */
+  public static void shiftRow(int bits, int width, int x, int screenWidth, long[] out, int offset)
+  {
+    long left = (long)bits << (64 - width);
     
-    for (int i = data.length-elements-1; i > -1; i--) 
+    if(screenWidth == 64)
     {
-      setAbsolutePixelValue(i+elements, data[i]);
+      out[offset] = Long.rotateRight(left, x);
+      return;
     }
-    for (int i = 0; i < elements; i++) 
+    
+    //rotate the 128 pixel row right by x
+    long right = 0;
+    if(x >= 64)
     {
-      setAbsolutePixelValue(i, 0);
+      right = left;
+      left = 0;
+      x -= 64;
     }
+    if(x > 0)
+    {
+      long newLeft = (left >>> x) | (right << (64 - x));
+      right = (right >>> x) | (left << (64 - x));
+      left = newLeft;
+    }
+    
+    out[offset] = left;
+    out[offset+1] = right;
+  }
+  
+  public void scrollDown(int lines)
+  {
+    int shift = wordsPerRow*lines;
+    int words = Math.min(data.length, MAX_PIXELS/64); //the pixels scrolling has always touched
+    
+    if(shift < words)
+      System.arraycopy(data, 0, data, shift, words-shift);
+    Arrays.fill(data, 0, Math.min(shift, words), 0);
+    
+    settleWords(0, words);
   }
   
   public void scrollLeft()
   {
-    for (int i = 0; i < 4; i++) 
+    for (int row = 0; row < this.height; row++) 
     {
-      for (int j = 0; j < this.height; j++) 
+      int first = row*wordsPerRow;
+      if(wordsPerRow == 1)
+        data[first] <<= 4;
+      else
       {
-        int start = j*this.width;
-        for (int k = 0; k < this.width-1; k++) 
-        {
-          setAbsolutePixelValue(start+k, data[start+k+1]);
-        }
-        setAbsolutePixelValue(start+this.width-1, 0);
+        data[first] = data[first] << 4 | data[first+1] >>> 60;
+        data[first+1] <<= 4;
       }
     }
+    
+    settleWords(0, this.height*wordsPerRow);
   }
   
   public void scrollRight()
   {
-    for (int i = 0; i < 4; i++) 
+    for (int row = 0; row < this.height; row++) 
     {
-      for (int j = 0; j < this.height; j++) 
+      int first = row*wordsPerRow;
+      if(wordsPerRow == 1)
+        data[first] >>>= 4;
+      else
       {
-        int start = j*this.width;
-        for (int k = this.width-1; k > 0; k--) 
-        {
-          setAbsolutePixelValue(start+k, data[start+k-1]);
-        }
-        setAbsolutePixelValue(start, 0);
+        data[first+1] = data[first+1] >>> 4 | data[first] << 60;
+        data[first] >>>= 4;
       }
     }
+    
+    settleWords(0, this.height*wordsPerRow);
+  }
+  
+  /**
+   * Shows the words in [from, to) exactly as they now are in data, cutting
+   * short any fading there, as scrolled pixels have always been.
+   */
+  private void settleWords(int from, int to)
+  {
+    System.arraycopy(data, from, renderData, from, to-from);
+    Arrays.fill(deleteBuffer, from, to, 0);
+    Arrays.fill(timers, from*64, to*64, -1);
+    for (int slot = fadingCount-1; slot >= 0; slot--) 
+    {
+      if(fading[slot] >= from*64 && fading[slot] < to*64)
+        stopFading(fading[slot]);
+    }
   }
   
+  /**
+   * Publishes the screen as it is now for the paint thread and asks for a
+   * repaint, unless one is already on its way and will pick this frame up.
+   * Only the emulation thread should call this.
+   */
   public void update()
   {
-    repaint();
+    FrameHandoff frames = this.frames;
+    FrameHandoff.Frame frame = frames.getBackFrame();
+    System.arraycopy(renderData, 0, frame.getPixels(), 0, renderData.length);
+    System.arraycopy(timers, 0, frame.getTimers(), 0, timers.length);
+    fillColumnColors(frame.getColumnColors());
+    frames.publish();
+    
+    if(canvas != null && !repaintPending.getAndSet(true))
+      canvas.repaint();
   }
   
-  public void paintGL()
+  /**
+   * Returns the newest published frame for the canvas to draw. Only the
+   * canvas's paint thread should call this.
+   */
+  public FrameHandoff.Frame acquireFrame()
   {
-    if(!loaded)
-    {
-      try 
-      {
-        makeCurrent();
-        setVSyncEnabled(true);
-      } catch (LWJGLException ex) 
-      {
-        ex.printStackTrace();
-      }
-      loadImages();
-      GL11.glViewport(0, 0, getWidth(), getHeight());
-            
-      GL11.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
-          
-      loaded = true;
-    }
-    
-    GL11.glMatrixMode(GL11.GL_PROJECTION);
-      GL11.glLoadIdentity();
-        GLU.gluOrtho2D(0, width*scale, height*scale, 0);
-    GL11.glMatrixMode(GL11.GL_MODELVIEW);
-    GL11.glLoadIdentity();
-        
-    GL11.glClear(GL11.GL_COLOR_BUFFER_BIT | GL11.GL_DEPTH_BUFFER_BIT);
-    
-    GL11.glEnable(GL11.GL_BLEND);
-    GL11.glBlendFunc(GL11.GL_SRC_ALPHA, GL11.GL_ONE);
-    GL11.glEnable(GL11.GL_TEXTURE_2D);
-    GL11.glColor4f(1, 1, 1, 1);
-    if(useBlur)
-    {
-      if(useColorFading)
-        GL11.glBindTexture(GL11.GL_TEXTURE_2D, pixel3.getTextureID());
-      else
-        GL11.glBindTexture(GL11.GL_TEXTURE_2D, pixel.getTextureID());
-    }
-    else
-      GL11.glBindTexture(GL11.GL_TEXTURE_2D, pixel2.getTextureID());
-    GL11.glBegin(GL11.GL_QUADS);
-    
-    for (int i = 0; i < renderData.length; i++) 
-    {
-      if(renderData[i] != 0)
-      {
-        float scale = this.scale;
-        float x = i%width*scale-10;
-        float y = i/width*scale-10;
-        int colorIndex = 0;
-        for (int j = 0; j < positions.length-1; j++) 
-        {
-          if(x >= positions[j] && x <= positions[j+1])
-          {
-            colorIndex = j;
-            j = positions.length;
-          }
-        }
-        
-        float relPosition = (x-positions[colorIndex])/(float)(positions[colorIndex+1]-positions[colorIndex]);
-        
-        float[] color1 = getInterpolatedColor(colorIndex);
-        float[] color2 = getInterpolatedColor(colorIndex+1);
-        float[] color = new float[3];
-        
-        color[RED] = (1-relPosition)*color1[RED] + relPosition*color2[RED];
-        color[GREEN] = (1-relPosition)*color1[GREEN] + relPosition*color2[GREEN];
-        color[BLUE] = (1-relPosition)*color1[BLUE] + relPosition*color2[BLUE];
-        
-        float alpha = 1;
-        if(timers[i] != -1)
-          alpha = (float)(timers[i]*trailOpacity)/deleteDelay;
-        
-        if(useColorFading)
-          GL11.glColor4f(color[0], color[1], color[2], alpha);
-        else
-          GL11.glColor4f(1, 1, 1, alpha);
-          
-        float start = 0f;
-        float end = 1f;
-        float width = 32*(scale/12f);
-        GL11.glTexCoord2f(start, end);
-        GL11.glVertex2f(x, y+width);
-        GL11.glTexCoord2f(start, start);
-        GL11.glVertex2f(x, y);
-        GL11.glTexCoord2f(end, start);
-        GL11.glVertex2f(x+width, y);
-        GL11.glTexCoord2f(end, end);
-        GL11.glVertex2f(x+width, y+width);
-      }
-    }
-    GL11.glEnd();
-    
-    if(paused)
-      renderPaused();
-    
-    try 
-    {
-      swapBuffers();
-    } catch (LWJGLException ex) 
-    {
-      ex.printStackTrace();
-    }
+    repaintPending.set(false);
+    return frames.acquire();
   }
   
-  private void renderPaused()
-  { 
-    GL11.glDisable(GL11.GL_TEXTURE_2D);
+  /**
+   * Draws the screen as it is now with the given software renderer, using
+   * this screen's glow and trail settings, into an ARGB image of
+   * SoftwareRenderer.getImageWidth() by getImageHeight() pixels. Like
+   * update(), this reads the live screen and belongs on the emulation thread.
+   */
+  public void renderSoftware(SoftwareRenderer renderer, int[] argb) throws IOException
+  {
+    if(softwareColors == null || softwareColors.length < width*3)
+      softwareColors = new float[width*3];
+    fillColumnColors(softwareColors);
     
-    GL11.glBlendFunc(GL11.GL_SRC_ALPHA, GL11.GL_ONE_MINUS_SRC_ALPHA);
-    GL11.glColor4f(.7f, .7f, .7f, .7f);
-    GL11.glPushMatrix();
-      GL11.glTranslatef(width*scale/2 - 150,
-                        height*scale/2 - 62,
-                        0);
-      GL11.glBegin(GL11.GL_QUADS);
-        GL11.glVertex2f(0, 125);
-        GL11.glVertex2f(0, 0);
-        GL11.glVertex2f(300, 0);
-        GL11.glVertex2f(300, 125);
-      GL11.glEnd();
-      GL11.glColor4f(.8f, .8f, .8f, 1);  
-      GL11.glBegin(GL11.GL_LINE_LOOP);
-        GL11.glVertex2f(0, 125);
-        GL11.glVertex2f(0, 0);
-        GL11.glVertex2f(300, 0);
-        GL11.glVertex2f(300, 125);
-      GL11.glEnd();
-    GL11.glPopMatrix();
-    
-    float xStart = 0;
-    float xEnd = pausedTexture.getImageWidth()/(float)pausedTexture.getTextureWidth();
-    float yStart = 0;
-    float yEnd = pausedTexture.getImageHeight()/(float)pausedTexture.getTextureHeight();
-    
-    pausedTexture.bind();
-    GL11.glColor4f(1, 1, 1, 1);
-    GL11.glEnable(GL11.GL_TEXTURE_2D);
-    GL11.glPushMatrix();
-      GL11.glTranslatef(width*scale/2 - 91,
-                        height*scale/2 - 26,
-                        0);
-      GL11.glBegin(GL11.GL_QUADS);
-        GL11.glTexCoord2f(xStart, yEnd); GL11.glVertex2f(0, 53);
-        GL11.glTexCoord2f(xStart, yStart); GL11.glVertex2f(0, 0);
-        GL11.glTexCoord2f(xEnd, yStart); GL11.glVertex2f(182, 0);
-        GL11.glTexCoord2f(xEnd, yEnd); GL11.glVertex2f(182, 53);
-      GL11.glEnd();
-    GL11.glPopMatrix();
+    renderer.setUseBlur(useBlur);
+    renderer.setUseColorFading(useColorFading);
+    renderer.setTrails(deleteDelay, trailOpacity);
+    renderer.render(renderData, timers, softwareColors, width, height, argb);
   }
   
   public void update(float delta)
+  {
+    update(delta, 1);
+  }
+  
+  /**
+   * Advances the colour animation by delta and the fading pixels by the
+   * given number of steps in one go, so the emulator can catch the screen
+   * up once per frame rather than once per instruction.
+   */
+  public void update(float delta, int steps)
   {
     delta /= 100f;
     for (int i = 0; i < NUM_POSITIONS; i++) 
@@ -423,7 +459,7 @@ public class Screen extends AWTGLCanvas
         timeUp(i);
     }
     
-    updateDeleteBuffer();
+    updateDeleteBuffer(steps);
   }
   
   public void clear()
@@ -432,12 +468,51 @@ public class Screen extends AWTGLCanvas
     {
       data[i] = 0;
       renderData[i] = 0;
-      timers[i] = 0;
       deleteBuffer[i] = 0;
     }
+    for (int i = 0; i < timers.length; i++) 
+    {
+      timers[i] = 0;
+      fadingSlot[i] = -1;
+    }
+    fadingCount = 0;
   }
   
-  private float[] getInterpolatedColor(int position)
+  /**
+   * Works out every column's colour at the current point of the colour
+   * animation, as red, green and blue for each column in turn.
+   */
+  private void fillColumnColors(float[] columnColors)
+  {
+    for (int i = 0; i < NUM_POSITIONS; i++) 
+    {
+      getInterpolatedColor(i, stopColors, i*3);
+    }
+    
+    for (int column = 0; column < width; column++) 
+    {
+      float x = column*scale-10;
+      int colorIndex = 0;
+      for (int j = 0; j < positions.length-1; j++) 
+      {
+        if(x >= positions[j] && x <= positions[j+1])
+        {
+          colorIndex = j;
+          j = positions.length;
+        }
+      }
+      
+      float relPosition = (x-positions[colorIndex])/(float)(positions[colorIndex+1]-positions[colorIndex]);
+      
+      for (int channel = RED; channel <= BLUE; channel++) 
+      {
+        columnColors[column*3 + channel] = (1-relPosition)*stopColors[colorIndex*3 + channel] +
+                                           relPosition*stopColors[(colorIndex+1)*3 + channel];
+      }
+    }
+  }
+  
+  private void getInterpolatedColor(int position, float[] colorBuffer, int offset)
     {
         float lastRed = lastColor[position][RED];
         float lastGreen = lastColor[position][GREEN];
@@ -448,22 +523,19 @@ public class Screen extends AWTGLCanvas
         float blue = color[position][BLUE];
         
         float done = (lastTime[position]-time[position])/lastTime[position];
-        float[] colorBuffer = new float[3];
-        colorBuffer[RED] = (1-done)*lastRed + done*red;
-        colorBuffer[GREEN] = (1-done)*lastGreen + done*green;
-        colorBuffer[BLUE] = (1-done)*lastBlue + done*blue;
-        
-        return colorBuffer;
+        colorBuffer[offset + RED] = (1-done)*lastRed + done*red;
+        colorBuffer[offset + GREEN] = (1-done)*lastGreen + done*green;
+        colorBuffer[offset + BLUE] = (1-done)*lastBlue + done*blue;
     }
     
   private void timeUp(int position)
     {
-        lastTime[position] = (float)(Math.random()*5+2);
+        lastTime[position] = random.nextFloat()*5+2;
         time[position] = lastTime[position];
         
-        float red = (float)Math.random()*(255-110)+110;
-        float green = (float)Math.random()*(255-110)+110;
-        float blue = (float)Math.random()*(255-110)+110;
+        float red = random.nextFloat()*(255-110)+110;
+        float green = random.nextFloat()*(255-110)+110;
+        float blue = random.nextFloat()*(255-110)+110;
         
         red /= 255f;
         green /= 255f;
@@ -481,22 +553,24 @@ public class Screen extends AWTGLCanvas
   public void reset()
   {
     clear();
+    resetColors();
   }
   
-  public void reload()
-  {
-    loaded = false;
-  }
-
   public boolean isPaused()
   {
     return paused;
   }
 
+  /**
+   * Shows or hides the paused overlay. Called from the AWT thread, so this
+   * only flips the flag and repaints the last published frame; publishing
+   * is left to the emulation thread, which does it before it parks.
+   */
   public void setPaused(boolean paused)
   {
     this.paused = paused;
-    update();
+    if(canvas != null)
+      canvas.repaint();
   }
 
   public boolean isReduceFlicker()
@@ -513,6 +587,15 @@ public class Screen extends AWTGLCanvas
   {
     return scale;
   }
+  
+  /**
+   * Returns how many image pixels each pixel of a screen of the given width
+   * spans, for every renderer alike.
+   */
+  public static int getScale(int pixelsAcross)
+  {
+    return (int)((64f/pixelsAcross)*12);
+  }
 
   public int getPixelsAcross()
   {
@@ -524,22 +607,22 @@ public class Screen extends AWTGLCanvas
     return height;
   }
 
-  public int[] getData()
+  public long[] getData()
   {
     return data;
   }
 
-  public void setData(int[] data)
+  public void setData(long[] data)
   {
     this.data = data;
   }
 
-  public int[] getRenderData()
+  public long[] getRenderData()
   {
     return renderData;
   }
 
-  public void setRenderData(int[] renderData)
+  public void setRenderData(long[] renderData)
   {
     this.renderData = renderData;
   }
@@ -552,14 +635,23 @@ public class Screen extends AWTGLCanvas
   public void setTimers(int[] timers)
   {
     this.timers = timers;
+    
+    //only erased pixels count down from a positive value
+    fadingCount = 0;
+    for (int i = 0; i < timers.length; i++) 
+    {
+      fadingSlot[i] = -1;
+      if(timers[i] > 0)
+        startFading(i);
+    }
   }
 
-  public int[] getDeleteBuffer()
+  public long[] getDeleteBuffer()
   {
     return deleteBuffer;
   }
 
-  public void setDeleteBuffer(int[] deleteBuffer)
+  public void setDeleteBuffer(long[] deleteBuffer)
   {
     this.deleteBuffer = deleteBuffer;
   }
@@ -598,4 +690,28 @@ public class Screen extends AWTGLCanvas
   {
     return schip;
   }
+
+  public int getDeleteDelay()
+  {
+    return deleteDelay;
+  }
+
+  public float getTrailOpacity()
+  {
+    return trailOpacity;
+  }
+
+  public Component getCanvas()
+  {
+    return canvas;
+  }
+
+  /**
+   * Sets the component that shows this screen's frames and is repainted
+   * each time one is published.
+   */
+  public void setCanvas(Component canvas)
+  {
+    this.canvas = canvas;
+  }
 }
\ No newline at end of file
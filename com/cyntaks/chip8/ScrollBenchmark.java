@@ -0,0 +1,132 @@
+package com.cyntaks.chip8;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Times the SCHIP scroll opcodes on a full 128x64 screen. Each round runs
+ * an even mix of left, right and 4-line down scrolls, first through Screen's
+ * word-level scrolls and then through the per-pixel passes they replaced,
+ * and checks that both leave the same pixels. Needs no display:
+ *
+ * <pre>
+ * java com.cyntaks.chip8.ScrollBenchmark [scrolls per round]
+ * </pre>
+ */
+public class ScrollBenchmark
+{
+  private static final int ROUNDS = 5;
+
+  public static void main(String[] args)
+  {
+    int scrolls = args.length > 0 ? Integer.parseInt(args[0]) : 30000;
+
+    Screen words = createScreen();
+    Screen pixels = createScreen();
+    for (int round = 1; round <= ROUNDS; round++)
+    {
+      long start = System.nanoTime();
+      for (int i = 0; i < scrolls; i++)
+      {
+        scroll(words, i);
+      }
+      long wordTime = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int i = 0; i < scrolls/100; i++) //a hundred times slower, so fewer of them
+      {
+        scrollByPixels(pixels, i);
+      }
+      long pixelTime = System.nanoTime() - start;
+
+      System.out.println("round " + round + ": word scrolls " + format(wordTime/(double)scrolls) +
+                         ", per-pixel scrolls " + format(pixelTime/(double)(scrolls/100)));
+    }
+
+    //the same sequence of scrolls must give the same screen either way
+    Screen check = createScreen();
+    for (int i = 0; i < scrolls/100; i++)
+    {
+      scroll(check, i);
+    }
+    if(!Arrays.equals(check.getData(), pixels.getData()))
+      throw new IllegalStateException("The word and per-pixel scrolls disagree");
+  }
+
+  /**
+   * Returns an SCHIP screen covered in random sprite rows.
+   */
+  private static Screen createScreen()
+  {
+    Screen screen = new Screen();
+    screen.setUseSChip(true);
+    Random random = new Random(1);
+    for (int i = 0; i < 2000; i++)
+    {
+      screen.drawSpriteRow(random.nextInt(128), random.nextInt(64), random.nextInt(1 << 16), 16);
+    }
+    return screen;
+  }
+
+  private static void scroll(Screen screen, int i)
+  {
+    if(i%3 == 0)
+      screen.scrollLeft();
+    else if(i%3 == 1)
+      screen.scrollRight();
+    else
+      screen.scrollDown(4);
+  }
+
+  /**
+   * Scrolls the way Screen used to, moving one pixel at a time and shifting
+   * sideways in four 1-pixel passes.
+   */
+  private static void scrollByPixels(Screen screen, int i)
+  {
+    int width = screen.getPixelsAcross();
+    int height = screen.getPixelsHigh();
+    if(i%3 == 2)
+    {
+      int elements = width*4;
+      for (int j = width*height-elements-1; j > -1; j--)
+      {
+        screen.setAbsolutePixelValue(j+elements, screen.getPixel(j/width, j%width));
+      }
+      for (int j = 0; j < elements; j++)
+      {
+        screen.setAbsolutePixelValue(j, 0);
+      }
+      return;
+    }
+
+    for (int pass = 0; pass < 4; pass++)
+    {
+      for (int row = 0; row < height; row++)
+      {
+        int start = row*width;
+        if(i%3 == 0)
+        {
+          for (int col = 0; col < width-1; col++)
+          {
+            screen.setAbsolutePixelValue(start+col, screen.getPixel(row, col+1));
+          }
+          screen.setAbsolutePixelValue(start+width-1, 0);
+        }
+        else
+        {
+          for (int col = width-1; col > 0; col--)
+          {
+            screen.setAbsolutePixelValue(start+col, screen.getPixel(row, col-1));
+          }
+          screen.setAbsolutePixelValue(start, 0);
+        }
+      }
+    }
+  }
+
+  private static String format(double nanos)
+  {
+    return Math.round(nanos/10)/100.0 + " us each";
+  }
+}
@@ -0,0 +1,286 @@
+package com.cyntaks.chip8;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import javax.imageio.ImageIO;
+
+/**
+ * Draws the screen the way GLScreenCanvas does, glow, trails and colour
+ * fading included, but entirely in Java into an ARGB int array, for
+ * machines without OpenGL (see SoftwareScreenCanvas) or for saving
+ * screenshots and video frames.
+ * Every lit pixel adds its glow kernel, tinted and faded, onto a black
+ * image, which is how the GL version blends its textured quads. The image
+ * is split into horizontal stripes that are drawn in parallel.
+ */
+public class SoftwareRenderer
+{
+  private static final String[] KERNEL_IMAGES = {"images/pixel.png", "images/pixel2.png", "images/pixel3.png"};
+  private static final int STRIPE_ROWS = 16; //output rows drawn by one task
+
+  private ForkJoinPool pool;
+  private float[][] kernels; //premultiplied red, green, blue per kernel pixel, one for each image
+  private int kernelScale; //the screen scale the kernels were made for
+  private int kernelSize;
+  private float[] accumulator;
+
+  private boolean useBlur = true;
+  private boolean useColorFading = true;
+  private int deleteDelay = 60;
+  private float trailOpacity = 1.1f;
+
+  public SoftwareRenderer()
+  {
+    this(ForkJoinPool.commonPool());
+  }
+
+  public SoftwareRenderer(ForkJoinPool pool)
+  {
+    this.pool = pool;
+    kernels = new float[KERNEL_IMAGES.length][];
+  }
+
+  /**
+   * Returns how wide an image of a screen of the given size is, in pixels.
+   */
+  public static int getImageWidth(int pixelsAcross)
+  {
+    return pixelsAcross*Screen.getScale(pixelsAcross);
+  }
+
+  public static int getImageHeight(int pixelsAcross, int pixelsHigh)
+  {
+    return pixelsHigh*Screen.getScale(pixelsAcross);
+  }
+
+  /**
+   * Draws a frame into argb, which must hold getImageWidth() times
+   * getImageHeight() pixels.
+   */
+  public void render(FrameHandoff.Frame frame, int[] argb) throws IOException
+  {
+    render(frame.getPixels(), frame.getTimers(), frame.getColumnColors(), frame.getWidth(), frame.getHeight(), argb);
+  }
+
+  /**
+   * Draws a screen given as its render plane, fade timers and column colours
+   * (laid out as in FrameHandoff.Frame) into argb.
+   */
+  public void render(long[] pixels, int[] timers, float[] columnColors, int width, int height, int[] argb) throws IOException
+  {
+    int scale = Screen.getScale(width);
+    if(scale != kernelScale)
+      loadKernels(scale);
+
+    int imageWidth = width*scale;
+    int imageHeight = height*scale;
+    if(accumulator == null || accumulator.length < imageWidth*imageHeight*3)
+      accumulator = new float[imageWidth*imageHeight*3];
+
+    float[] kernel = kernels[useBlur ? (useColorFading ? 2 : 0) : 1];
+    pool.invoke(new Stripes(0, imageHeight, pixels, timers, columnColors, width, scale, kernel, argb));
+  }
+
+  /**
+   * Loads the glow images and scales each of them once to the quad size
+   * used at this screen scale, premultiplied by its alpha.
+   */
+  private void loadKernels(int scale) throws IOException
+  {
+    int size = (int)(32*(scale/12f));
+    for (int i = 0; i < KERNEL_IMAGES.length; i++)
+    {
+      InputStream in = SoftwareRenderer.class.getClassLoader().getResourceAsStream(KERNEL_IMAGES[i]);
+      if(in == null)
+        throw new IOException("Cannot find: " + KERNEL_IMAGES[i]);
+      BufferedImage image = ImageIO.read(new BufferedInputStream(in));
+      in.close();
+
+      //textures are padded up to a power of two and the quads span the padding too
+      BufferedImage texture = new BufferedImage(powerOfTwo(image.getWidth()), powerOfTwo(image.getHeight()), BufferedImage.TYPE_INT_ARGB);
+      texture.getGraphics().drawImage(image, 0, 0, null);
+
+      BufferedImage scaled = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+      Graphics2D g = scaled.createGraphics();
+      g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      g.drawImage(texture, 0, 0, size, size, null);
+      g.dispose();
+
+      float[] kernel = new float[size*size*3];
+      for (int y = 0; y < size; y++)
+      {
+        for (int x = 0; x < size; x++)
+        {
+          int pixel = scaled.getRGB(x, y);
+          float alpha = (pixel >>> 24)/255f;
+          int index = (y*size + x)*3;
+          kernel[index] = ((pixel >> 16) & 0xFF)/255f*alpha;
+          kernel[index+1] = ((pixel >> 8) & 0xFF)/255f*alpha;
+          kernel[index+2] = (pixel & 0xFF)/255f*alpha;
+        }
+      }
+      kernels[i] = kernel;
+    }
+    kernelScale = scale;
+    kernelSize = size;
+  }
+
+  private static int powerOfTwo(int n)
+  {
+    int power = 2;
+    while(power < n)
+      power *= 2;
+    return power;
+  }
+
+  /**
+   * Draws the output rows [from, to), splitting into separate tasks until
+   * each has at most STRIPE_ROWS rows. Stripes never share output rows, so
+   * they can all write into the same accumulator and image.
+   */
+  private class Stripes extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+
+    private int from;
+    private int to;
+    private long[] pixels;
+    private int[] timers;
+    private float[] columnColors;
+    private int width;
+    private int scale;
+    private float[] kernel;
+    private int[] argb;
+
+    public Stripes(int from, int to, long[] pixels, int[] timers, float[] columnColors, int width, int scale, float[] kernel, int[] argb)
+    {
+      this.from = from;
+      this.to = to;
+      this.pixels = pixels;
+      this.timers = timers;
+      this.columnColors = columnColors;
+      this.width = width;
+      this.scale = scale;
+      this.kernel = kernel;
+      this.argb = argb;
+    }
+
+    protected void compute()
+    {
+      if(to - from > STRIPE_ROWS)
+      {
+        int middle = (from + to)/2;
+        invokeAll(new Stripes(from, middle, pixels, timers, columnColors, width, scale, kernel, argb),
+                  new Stripes(middle, to, pixels, timers, columnColors, width, scale, kernel, argb));
+      }
+      else
+        draw();
+    }
+
+    private void draw()
+    {
+      int imageWidth = width*scale;
+      int size = kernelSize;
+      float[] accumulator = SoftwareRenderer.this.accumulator;
+      for (int i = from*imageWidth*3; i < to*imageWidth*3; i++)
+      {
+        accumulator[i] = 0;
+      }
+
+      //only screen rows whose quads (starting 10 pixels up and left of the cell) reach this stripe
+      int wordsPerRow = width/64;
+      int firstRow = Math.max(0, (from + 10 - size)/scale);
+      int lastRow = Math.min(pixels.length/wordsPerRow - 1, (to - 1 + 10)/scale);
+      for (int word = firstRow*wordsPerRow; word < (lastRow+1)*wordsPerRow; word++)
+      {
+        long bits = pixels[word];
+        while(bits != 0)
+        {
+          int bit = Long.numberOfLeadingZeros(bits);
+          bits &= ~(0x8000000000000000L >>> bit);
+          int i = word*64 + bit;
+          int column = i%width;
+
+          float red = 1;
+          float green = 1;
+          float blue = 1;
+          if(useColorFading)
+          {
+            red = columnColors[column*3];
+            green = columnColors[column*3 + 1];
+            blue = columnColors[column*3 + 2];
+          }
+          float alpha = 1;
+          if(timers[i] != -1)
+            alpha = Math.min(timers[i]*trailOpacity/deleteDelay, 1); //GL clamps vertex colours
+          red *= alpha;
+          green *= alpha;
+          blue *= alpha;
+
+          int left = column*scale - 10;
+          int top = i/width*scale - 10;
+          int startY = Math.max(top, from);
+          int endY = Math.min(top + size, to);
+          int startX = Math.max(left, 0);
+          int endX = Math.min(left + size, imageWidth);
+          for (int y = startY; y < endY; y++)
+          {
+            int k = ((y - top)*size + startX - left)*3;
+            int a = (y*imageWidth + startX)*3;
+            for (int x = startX; x < endX; x++)
+            {
+              accumulator[a++] += kernel[k++]*red;
+              accumulator[a++] += kernel[k++]*green;
+              accumulator[a++] += kernel[k++]*blue;
+            }
+          }
+        }
+      }
+
+      int a = from*imageWidth*3;
+      for (int p = from*imageWidth; p < to*imageWidth; p++)
+      {
+        int r = (int)(Math.min(accumulator[a++], 1f)*255);
+        int g = (int)(Math.min(accumulator[a++], 1f)*255);
+        int b = (int)(Math.min(accumulator[a++], 1f)*255);
+        argb[p] = 0xFF000000 | r << 16 | g << 8 | b;
+      }
+    }
+  }
+
+  public boolean isUseBlur()
+  {
+    return useBlur;
+  }
+
+  public void setUseBlur(boolean useBlur)
+  {
+    this.useBlur = useBlur;
+  }
+
+  public boolean isUseColorFading()
+  {
+    return useColorFading;
+  }
+
+  public void setUseColorFading(boolean useColorFading)
+  {
+    this.useColorFading = useColorFading;
+  }
+
+  /**
+   * Sets how fading pixels are dimmed: a pixel with timer t is drawn at
+   * t*trailOpacity/deleteDelay of its full brightness.
+   */
+  public void setTrails(int deleteDelay, float trailOpacity)
+  {
+    this.deleteDelay = deleteDelay;
+    this.trailOpacity = trailOpacity;
+  }
+}
@@ -0,0 +1,130 @@
+package com.cyntaks.chip8;
+
+import java.awt.AlphaComposite;
+import java.awt.Canvas;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferStrategy;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.imageio.ImageIO;
+
+/**
+ * Shows a Screen without OpenGL: each published frame is drawn by a
+ * SoftwareRenderer into an image, which is scaled onto the canvas through
+ * a Java2D BufferStrategy. CHIP8 falls back to this when the GL canvas
+ * can't be created.
+ */
+public class SoftwareScreenCanvas extends Canvas
+{
+  private static final long serialVersionUID = 1L;
+
+  private Screen screen;
+  private SoftwareRenderer renderer;
+  private BufferedImage image;
+  private int[] argb; //the image's own pixels
+  private BufferedImage pausedImage;
+
+  public SoftwareScreenCanvas(Screen screen)
+  {
+    this.screen = screen;
+    renderer = new SoftwareRenderer();
+    setBackground(Color.BLACK);
+    setSize(64*12, 32*12);
+
+    try
+    {
+      InputStream in = SoftwareScreenCanvas.class.getClassLoader().getResourceAsStream("images/paused.png");
+      if(in != null)
+      {
+        pausedImage = ImageIO.read(in);
+        in.close();
+      }
+    } catch (IOException ex)
+    {
+      ex.printStackTrace();
+    }
+  }
+
+  /**
+   * Paints straight over the last frame, there is nothing to clear first.
+   */
+  public void update(Graphics g)
+  {
+    paint(g);
+  }
+
+  public void paint(Graphics g)
+  {
+    if(!isDisplayable() || getWidth() == 0 || getHeight() == 0)
+      return;
+
+    FrameHandoff.Frame frame = screen.acquireFrame();
+    int imageWidth = SoftwareRenderer.getImageWidth(frame.getWidth());
+    int imageHeight = SoftwareRenderer.getImageHeight(frame.getWidth(), frame.getHeight());
+    if(image == null || image.getWidth() != imageWidth || image.getHeight() != imageHeight)
+    {
+      image = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_RGB);
+      argb = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+    }
+
+    renderer.setUseBlur(screen.isUseBlur());
+    renderer.setUseColorFading(screen.isUseColorFading());
+    renderer.setTrails(screen.getDeleteDelay(), screen.getTrailOpacity());
+    try
+    {
+      renderer.render(frame, argb);
+    } catch (IOException ex)
+    {
+      ex.printStackTrace();
+      return;
+    }
+
+    if(getBufferStrategy() == null)
+      createBufferStrategy(2);
+    BufferStrategy strategy = getBufferStrategy();
+    do
+    {
+      do
+      {
+        Graphics2D graphics = (Graphics2D)strategy.getDrawGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(image, 0, 0, getWidth(), getHeight(), null);
+        if(screen.isPaused())
+        {
+          graphics.scale(getWidth()/(double)imageWidth, getHeight()/(double)imageHeight);
+          renderPaused(graphics, imageWidth, imageHeight);
+        }
+        graphics.dispose();
+      } while(strategy.contentsRestored());
+      strategy.show();
+    } while(strategy.contentsLost());
+  }
+
+  /**
+   * Draws the same box and label as the GL canvas, in image coordinates.
+   */
+  private void renderPaused(Graphics2D graphics, int width, int height)
+  {
+    int left = width/2 - 150;
+    int top = height/2 - 62;
+    graphics.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, .7f));
+    graphics.setColor(new Color(.7f, .7f, .7f));
+    graphics.fillRect(left, top, 300, 125);
+    graphics.setComposite(AlphaComposite.SrcOver);
+    graphics.setColor(new Color(.8f, .8f, .8f));
+    graphics.drawRect(left, top, 300, 125);
+
+    if(pausedImage != null)
+      graphics.drawImage(pausedImage, width/2 - 91, height/2 - 26, 182, 53, null);
+  }
+
+  public SoftwareRenderer getRenderer()
+  {
+    return renderer;
+  }
+}
@@ -0,0 +1,242 @@
+package com.cyntaks.chip8;
+
+import java.util.Arrays;
+
+/**
+ * Caches sprites as row masks already shifted to their screen column, keyed
+ * by address, size, column and screen width, so that redrawing the same
+ * sprite in the same column skips reading and shifting its bytes. The
+ * cache is direct mapped and reuses its arrays, so lookups never allocate
+ * once it has warmed up. Memory records writes to the bytes entries were
+ * built from; before each lookup only the entries covering those bytes are
+ * checked, through a list of entries per start address, and a byte stops
+ * being watched once no entry covers it.
+ */
+public class SpriteCache 
+{
+  private static final int SIZE_BITS = 10;
+  private static final int SIZE = 1 << SIZE_BITS;
+  private static final int MAX_ROWS = 16;
+  private static final int MAX_BYTES = MAX_ROWS*2; //of one entry
+  
+  private Memory memory;
+  private int version;
+  
+  private int[] keys; //-1 for an empty slot
+  private int[] addresses;
+  private int[] heights;
+  private int[] widths;
+  private int[][] rows; //the source bytes of each row, to check entries against memory
+  private long[][] masks;
+  private int[] heads; //first slot of the entries starting at each address, -1 for none
+  private int[] next; //following slot with the same start address
+  private int[] previous;
+  private int[] watchers; //how many entries cover each byte
+  
+  private long hits;
+  private long misses;
+  private long invalidations;
+  
+  public SpriteCache(Memory memory)
+  {
+    this.memory = memory;
+    keys = new int[SIZE];
+    addresses = new int[SIZE];
+    heights = new int[SIZE];
+    widths = new int[SIZE];
+    rows = new int[SIZE][];
+    masks = new long[SIZE][];
+    next = new int[SIZE];
+    previous = new int[SIZE];
+    heads = new int[memory.getSize()];
+    watchers = new int[memory.getSize()];
+    forget();
+  }
+  
+  /**
+   * Returns the masks for a sprite drawn at column x, in the layout
+   * Screen.drawSpriteRows() expects.
+   * @param width 8, or 16 for SCHIP sprites, which take two bytes per row
+   */
+  public long[] get(int address, int height, int width, int x, int screenWidth)
+  {
+    if(version != memory.getWatchVersion())
+      forget();
+    else if(memory.getWatchedWriteCount() > 0)
+      revalidate();
+    
+    x %= screenWidth;
+    int key = (((address*MAX_ROWS + height-1)*2 + width/16)*128 + x)*2 + screenWidth/128;
+    int slot = (key * 0x9E3779B1) >>> (32 - SIZE_BITS);
+    
+    if(keys[slot] == key)
+    {
+      hits++;
+      return masks[slot];
+    }
+    
+    misses++;
+    if(keys[slot] != -1)
+      evict(slot);
+    if(rows[slot] == null)
+    {
+      rows[slot] = new int[MAX_ROWS];
+      masks[slot] = new long[MAX_ROWS*2];
+    }
+    
+    int bytesPerRow = width/8;
+    int wordsPerRow = screenWidth/64;
+    for (int i = 0; i < height; i++) 
+    {
+      int row = readRow(address + i*bytesPerRow, bytesPerRow);
+      rows[slot][i] = row;
+      Screen.shiftRow(row, width, x, screenWidth, masks[slot], i*wordsPerRow);
+    }
+    
+    keys[slot] = key;
+    addresses[slot] = address;
+    heights[slot] = height;
+    widths[slot] = width;
+    
+    previous[slot] = -1;
+    next[slot] = heads[address];
+    if(next[slot] != -1)
+      previous[next[slot]] = slot;
+    heads[address] = slot;
+    for (int i = address; i < address + height*bytesPerRow; i++) 
+    {
+      watchers[i]++;
+    }
+    memory.watch(address, height*bytesPerRow);
+    
+    return masks[slot];
+  }
+  
+  private int readRow(int address, int bytes)
+  {
+    int row = memory.load(address);
+    if(bytes > 1)
+      row = row << 8 | memory.load(address+1);
+    return row;
+  }
+  
+  /**
+   * Drops the entry in a slot and stops watching the bytes only it covered.
+   */
+  private void evict(int slot)
+  {
+    int address = addresses[slot];
+    if(previous[slot] != -1)
+      next[previous[slot]] = next[slot];
+    else
+      heads[address] = next[slot];
+    if(next[slot] != -1)
+      previous[next[slot]] = previous[slot];
+    
+    for (int i = address; i < address + heights[slot]*widths[slot]/8; i++) 
+    {
+      if(--watchers[i] == 0)
+        memory.unwatch(i);
+    }
+    keys[slot] = -1;
+  }
+  
+  /**
+   * Checks the entries covering each watched byte written since the last
+   * lookup, dropping those whose row has changed and watching the byte
+   * again for the rest.
+   */
+  private void revalidate()
+  {
+    int[] written = memory.getWatchedWrites();
+    for (int i = 0; i < memory.getWatchedWriteCount(); i++) 
+    {
+      int address = written[i];
+      boolean watched = false;
+      for (int start = Math.max(0, address-MAX_BYTES+1); start <= address; start++) 
+      {
+        int slot = heads[start];
+        while(slot != -1)
+        {
+          int following = next[slot];
+          int bytesPerRow = widths[slot]/8;
+          int row = (address-start)/bytesPerRow;
+          if(row < heights[slot])
+          {
+            if(readRow(start + row*bytesPerRow, bytesPerRow) == rows[slot][row])
+              watched = true;
+            else
+            {
+              evict(slot);
+              invalidations++;
+            }
+          }
+          slot = following;
+        }
+      }
+      if(watched)
+        memory.watch(address, 1);
+    }
+    memory.clearWatchedWrites();
+  }
+  
+  /**
+   * Empties the cache without unwatching anything, for when memory has
+   * dropped all its watches at once.
+   */
+  private void forget()
+  {
+    for (int i = 0; i < SIZE; i++) 
+    {
+      keys[i] = -1;
+    }
+    Arrays.fill(heads, -1);
+    Arrays.fill(watchers, 0);
+    version = memory.getWatchVersion();
+  }
+  
+  /**
+   * Drops every entry.
+   */
+  public void clear()
+  {
+    for (int i = 0; i < SIZE; i++) 
+    {
+      if(keys[i] != -1)
+        evict(i);
+    }
+  }
+  
+  public void clearStatistics()
+  {
+    hits = 0;
+    misses = 0;
+    invalidations = 0;
+  }
+
+  public long getHits()
+  {
+    return hits;
+  }
+
+  public long getMisses()
+  {
+    return misses;
+  }
+
+  public long getInvalidations()
+  {
+    return invalidations;
+  }
+  
+  public float getHitRate()
+  {
+    return hits+misses == 0 ? 0 : hits/(float)(hits+misses);
+  }
+  
+  public String getReport()
+  {
+    return "Sprite cache: " + hits + " hits, " + misses + " misses (" + (int)(getHitRate()*100) + "% hit rate), " +
+           invalidations + " invalidations";
+  }
+}
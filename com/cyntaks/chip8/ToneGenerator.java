@@ -0,0 +1,52 @@
+package com.cyntaks.chip8;
+
+/**
+ * Synthesizes the beep as 16-bit little-endian mono samples: a square wave
+ * whose volume ramps briefly up or down whenever it is switched, so that
+ * starting and stopping doesn't click. Each generator carries its own
+ * phase, so consecutive buffers join up seamlessly.
+ */
+public class ToneGenerator 
+{
+  public static final float SAMPLE_RATE = 44100;
+  private static final float FREQUENCY = 440;
+  private static final float VOLUME = .25f;
+  private static final float RAMP = VOLUME/(SAMPLE_RATE*.002f); //gain change per sample
+  
+  private float phase; //position in the current wave period, from 0 to 1
+  private float gain;
+  
+  /**
+   * Writes frames samples into buffer starting at offset, with the tone
+   * on or off.
+   */
+  public void fill(byte[] buffer, int offset, int frames, boolean on)
+  {
+    float target = on ? VOLUME : 0;
+    float step = FREQUENCY/SAMPLE_RATE;
+    for (int i = 0; i < frames; i++) 
+    {
+      if(gain < target)
+        gain = Math.min(gain + RAMP, target);
+      else if(gain > target)
+        gain = Math.max(gain - RAMP, target);
+      
+      int sample = (int)((phase < .5f ? gain : -gain)*Short.MAX_VALUE);
+      buffer[offset++] = (byte)sample;
+      buffer[offset++] = (byte)(sample >> 8);
+      
+      phase += step;
+      if(phase >= 1)
+        phase -= 1;
+    }
+  }
+
+  /**
+   * Returns true once the tone has ramped all the way down, so the output
+   * can stop without a click.
+   */
+  public boolean isSilent()
+  {
+    return gain == 0;
+  }
+}
@@ -0,0 +1,113 @@
+package com.cyntaks.chip8;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Records the beep to a WAV file against emulated time rather than the
+ * wall clock: CPUCore reports each stretch of emulated time along with
+ * whether the tone was on, and exactly that many samples are generated.
+ * The recording therefore lines up with the emulated frames at any speed,
+ * turbo included. Samples are collected in a direct buffer and written to
+ * a file channel whenever it fills.
+ */
+public class WavRecorder
+{
+  private static final int HEADER_SIZE = 44;
+  private static final int BUFFER_SIZE = 1 << 16;
+  private static final int BYTES_PER_SAMPLE = 2;
+
+  private FileChannel channel;
+  private ByteBuffer buffer;
+  private byte[] samples; //scratch space for the generator
+  private ToneGenerator generator;
+  private long dataBytes;
+  private long recordedNanos; //total emulated time passed to write()
+
+  public WavRecorder(Path file) throws IOException
+  {
+    channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                               StandardOpenOption.TRUNCATE_EXISTING);
+    buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    samples = new byte[4096*BYTES_PER_SAMPLE];
+    generator = new ToneGenerator();
+
+    writeHeader(); //the sizes are filled in by close()
+  }
+
+  /**
+   * Appends the given span of emulated time with the tone on or off.
+   */
+  public void write(long nanos, boolean on) throws IOException
+  {
+    //work from the running total so that rounding never drifts
+    recordedNanos += nanos;
+    long count = recordedNanos*(long)ToneGenerator.SAMPLE_RATE/1000000000L - dataBytes/BYTES_PER_SAMPLE;
+
+    while(count > 0)
+    {
+      int frames = (int)Math.min(count, samples.length/BYTES_PER_SAMPLE);
+      generator.fill(samples, 0, frames, on);
+      int length = frames*BYTES_PER_SAMPLE;
+      if(buffer.remaining() < length)
+        flush();
+      buffer.put(samples, 0, length);
+      dataBytes += length;
+      count -= frames;
+    }
+  }
+
+  private void flush() throws IOException
+  {
+    buffer.flip();
+    while(buffer.hasRemaining())
+    {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  private void writeHeader() throws IOException
+  {
+    int sampleRate = (int)ToneGenerator.SAMPLE_RATE;
+    buffer.clear();
+    buffer.put(new byte[] {'R', 'I', 'F', 'F'});
+    buffer.putInt((int)(HEADER_SIZE - 8 + dataBytes));
+    buffer.put(new byte[] {'W', 'A', 'V', 'E', 'f', 'm', 't', ' '});
+    buffer.putInt(16); //format chunk size
+    buffer.putShort((short)1); //PCM
+    buffer.putShort((short)1); //mono
+    buffer.putInt(sampleRate);
+    buffer.putInt(sampleRate*BYTES_PER_SAMPLE);
+    buffer.putShort((short)BYTES_PER_SAMPLE);
+    buffer.putShort((short)16); //bits per sample
+    buffer.put(new byte[] {'d', 'a', 't', 'a'});
+    buffer.putInt((int)dataBytes);
+  }
+
+  /**
+   * Returns how much emulated time has been recorded so far, in milliseconds.
+   */
+  public long getRecordedTime()
+  {
+    return dataBytes/BYTES_PER_SAMPLE*1000/(long)ToneGenerator.SAMPLE_RATE;
+  }
+
+  /**
+   * Writes out what is still buffered, fills in the header's sizes and
+   * closes the file.
+   */
+  public void close() throws IOException
+  {
+    flush();
+    writeHeader();
+    buffer.flip();
+    channel.write(buffer, 0);
+    buffer.clear();
+    channel.close();
+  }
+}